@@ -0,0 +1,16 @@
+#!/bin/bash
+
+# This script builds the adsorption job and its JMH benchmarks, then runs them
+# with the GC profiler so every result also reports the allocation rate.
+# Extra arguments go to JMH, e.g. a benchmark regex and parameter overrides:
+#   ./run-benchmarks.sh PropagationBenchmark -p users=20000 -p posts=200000
+
+# Navigate to benchmarks directory
+cd "$(dirname "$0")"
+
+# Install the job so the benchmarks build against the current sources
+mvn -q -f ../pom.xml install -DskipTests || exit 1
+mvn -q clean package || exit 1
+
+java --add-opens=java.base/sun.nio.ch=ALL-UNNAMED \
+     -jar target/benchmarks.jar -prof gc -rf json -rff target/jmh-result.json "$@"
@@ -0,0 +1,81 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning raw edges into weighted adjacency: the CSR build, and the per-vertex
+ * Adjacency.Builder fold that assignWeights' combineByKey runs on Spark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EdgeNormalizationBenchmark {
+    @Param({"2000"})
+    public int users;
+
+    @Param({"20000"})
+    public int posts;
+
+    @Param({"0.6", "1.0"})
+    public double skew;
+
+    private GraphData graph;
+    private VertexDictionary dictionary;
+
+    // Packed out-edges grouped by source, as combineByKey would see them
+    private int[] rowStart;
+    private long[] packed;
+
+    @Setup
+    public void setup() {
+        graph = SyntheticGraph.generate(users, posts, 0.6, skew, 42).toGraphData();
+        dictionary = VertexDictionary.build(graph.userIds, graph.postIds);
+
+        CsrGraph outEdges = CsrGraph.fromGraphData(graph, dictionary);
+        rowStart = new int[outEdges.numVertices() + 1];
+        packed = new long[outEdges.numEdges()];
+        for (int v = 0; v < outEdges.numVertices(); v++) {
+            for (int e = outEdges.rowStart(v); e < outEdges.rowEnd(v); e++) {
+                int target = outEdges.column(e);
+                EdgeType type = dictionary.isUser(v)
+                        ? (dictionary.isUser(target) ? EdgeType.USER_USER : EdgeType.USER_COMMENTS_POST)
+                        : EdgeType.POST_COMMENTED_BY_USER;
+                packed[e] = type.pack(target);
+            }
+            rowStart[v + 1] = outEdges.rowEnd(v);
+        }
+    }
+
+    @Benchmark
+    public CsrGraph csrBuild() {
+        return CsrGraph.fromGraphData(graph, dictionary);
+    }
+
+    @Benchmark
+    public Adjacency[] adjacencyBuilders() {
+        Adjacency[] result = new Adjacency[rowStart.length - 1];
+        for (int v = 0; v < result.length; v++) {
+            Adjacency.Builder builder = new Adjacency.Builder();
+            for (int e = rowStart[v]; e < rowStart[v + 1]; e++) {
+                builder.add(packed[e]);
+            }
+            result[v] = builder.build();
+        }
+        return result;
+    }
+}
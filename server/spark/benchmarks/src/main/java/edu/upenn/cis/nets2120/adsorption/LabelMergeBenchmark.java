@@ -0,0 +1,80 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LabelVector operations behind the propagate/merge lambdas: folding incoming vectors
+ * into one (aggregateByKey's seqOp and combOp), pruning, and the convergence diff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LabelMergeBenchmark {
+    // Labels per incoming vector
+    @Param({"10", "100"})
+    public int labels;
+
+    // Incoming vectors merged into one vertex
+    @Param({"16"})
+    public int fanIn;
+
+    private LabelVector[] incoming;
+    private LabelVector merged;
+    private LabelVector previous;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        incoming = new LabelVector[fanIn];
+        for (int i = 0; i < fanIn; i++) {
+            incoming[i] = randomVector(random, labels, labels * 8);
+        }
+        merged = merge();
+        previous = merged.scaledCopy(0.9);
+    }
+
+    private static LabelVector randomVector(Random random, int size, int universe) {
+        LabelVector vector = new LabelVector(size);
+        while (vector.size() < size) {
+            vector.set(random.nextInt(universe), random.nextDouble());
+        }
+        return vector;
+    }
+
+    @Benchmark
+    public LabelVector merge() {
+        LabelVector result = new LabelVector();
+        for (LabelVector vector : incoming) {
+            result.addScaled(vector, 0.5);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public LabelVector copyAndPrune() {
+        LabelVector copy = merged.copy();
+        copy.prune(labels, 1e-4);
+        return copy;
+    }
+
+    @Benchmark
+    public double maxAbsDiff() {
+        return LabelVector.maxAbsDiff(merged, previous);
+    }
+}
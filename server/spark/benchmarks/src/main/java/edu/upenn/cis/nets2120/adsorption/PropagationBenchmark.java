@@ -0,0 +1,77 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.apache.spark.SparkConf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One adsorption iteration of the CSR engine: pull, merge, prune and seed restore for every vertex
+ *
+ * Labels are warmed up with a few iterations first, so the vectors have realistic sizes
+ * instead of the single label of a cold start. The gc profiler only sees allocations of
+ * the benchmark thread, so compare allocation rates with threads=1, where the calling
+ * thread runs the whole iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PropagationBenchmark {
+    @Param({"2000"})
+    public int users;
+
+    @Param({"20000"})
+    public int posts;
+
+    @Param({"0.6", "1.0"})
+    public double skew;
+
+    // Fork/join threads (0 uses every available core)
+    @Param({"1", "0"})
+    public int threads;
+
+    private VertexDictionary dictionary;
+    private CsrGraph inEdges;
+    private CsrAdsorptionEngine engine;
+    private ForkJoinPool pool;
+    private LabelVector[] labels;
+
+    @Setup
+    public void setup() {
+        GraphData graph = SyntheticGraph.generate(users, posts, 0.6, skew, 42).toGraphData();
+        dictionary = VertexDictionary.build(graph.userIds, graph.postIds);
+        inEdges = CsrGraph.fromGraphData(graph, dictionary).transpose();
+        engine = new CsrAdsorptionEngine(AdsorptionConfig.fromSparkConf(new SparkConf(false)));
+        pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+
+        labels = CsrAdsorptionEngine.initializeUserLabels(dictionary);
+        for (int i = 0; i < 4; i++) {
+            labels = engine.iterate(pool, inEdges, labels, dictionary);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public LabelVector[] iteration() {
+        return engine.iterate(pool, inEdges, labels, dictionary);
+    }
+}
@@ -0,0 +1,111 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.apache.spark.SparkConf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Tuple2;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * From final post labels to recommendation rows: per-user top-N selection, and the
+ * batched staging-table insert encoding of RecommendationWriter against a connection that drops
+ * every statement, so only the job's own cost is measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultEncodingBenchmark {
+    @Param({"5000"})
+    public int users;
+
+    @Param({"50000"})
+    public int posts;
+
+    // User labels kept on every post vertex
+    @Param({"100"})
+    public int labelsPerPost;
+
+    @Param({"100"})
+    public int topN;
+
+    private VertexDictionary dictionary;
+    private List<Tuple2<Integer, LabelVector>> postWeights;
+    private List<Tuple2<Integer, TopPosts>> recommendations;
+    private RecommendationWriter writer;
+    private Connection connection;
+
+    @Setup
+    public void setup() {
+        dictionary = VertexDictionary.build(IntStream.rangeClosed(1, users).toArray(),
+                IntStream.rangeClosed(1, posts).toArray());
+
+        Random random = new Random(42);
+        postWeights = new ArrayList<>();
+        int firstPost = dictionary.offset(VertexType.POST);
+        for (int v = firstPost; v < firstPost + dictionary.count(VertexType.POST); v++) {
+            LabelVector labels = new LabelVector(labelsPerPost);
+            while (labels.size() < Math.min(labelsPerPost, users)) {
+                labels.set(random.nextInt(users), random.nextDouble());
+            }
+            postWeights.add(new Tuple2<>(v, labels));
+        }
+        recommendations = TopPosts.select(postWeights, users, topN);
+
+        writer = new RecommendationWriter("jdbc:none", "", "",
+                AdsorptionConfig.fromSparkConf(new SparkConf(false)
+                        .set("spark.adsorption.differentialWrite", "false")));
+        connection = discardingConnection();
+    }
+
+    @Benchmark
+    public List<Tuple2<Integer, TopPosts>> selectTopPosts() {
+        return TopPosts.select(postWeights, users, topN);
+    }
+
+    @Benchmark
+    public long writeRows() throws SQLException {
+        return writer.write(connection, recommendations.iterator(), dictionary);
+    }
+
+    /**
+     * Connection whose statements accept every call and do nothing
+     */
+    private static Connection discardingConnection() {
+        PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(
+                ResultEncodingBenchmark.class.getClassLoader(), new Class<?>[] {PreparedStatement.class},
+                (proxy, method, args) -> method.getName().equals("executeBatch") ? new int[0] : null);
+        return (Connection) Proxy.newProxyInstance(
+                ResultEncodingBenchmark.class.getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "prepareStatement":
+                            return statement;
+                        case "getAutoCommit":
+                            return true;
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,123 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.apache.spark.SparkConf;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Random users/posts graph shaped like InstaLite's: root posts, and replies to them
+ * (posts with a parent_post) that become comment and co-commenter edges
+ *
+ * Post authors and reply parents are drawn from Zipf distributions, so a few users
+ * write most posts and a few posts get most replies. skew is the Zipf exponent:
+ * 0 is uniform, around 1 is typical of social graphs. User ids are 1..users and
+ * post ids 1..posts; root posts come first, then replies.
+ */
+public class SyntheticGraph {
+    public final int users;
+    public final int roots;
+
+    // Author and parent post (0 for a root post) of post id i + 1
+    public final int[] postAuthors;
+    public final int[] postParents;
+
+    private SyntheticGraph(int users, int roots, int[] postAuthors, int[] postParents) {
+        this.users = users;
+        this.roots = roots;
+        this.postAuthors = postAuthors;
+        this.postParents = postParents;
+    }
+
+    /**
+     * Generate a graph; the same arguments always give the same graph
+     *
+     * @param replyFraction share of posts that are replies
+     */
+    public static SyntheticGraph generate(int users, int posts, double replyFraction, double skew, long seed) {
+        Random random = new Random(seed);
+        int roots = Math.max(1, (int) Math.round(posts * (1 - replyFraction)));
+
+        // Popularity ranks are shuffled so that popular users aren't simply the low ids
+        Zipf authors = new Zipf(users, skew);
+        int[] userByRank = shuffledIds(users, random);
+        Zipf parents = new Zipf(roots, skew);
+
+        int[] postAuthors = new int[posts];
+        int[] postParents = new int[posts];
+        for (int i = 0; i < posts; i++) {
+            postAuthors[i] = userByRank[authors.sample(random)];
+            postParents[i] = i < roots ? 0 : 1 + parents.sample(random);
+        }
+        return new SyntheticGraph(users, roots, postAuthors, postParents);
+    }
+
+    public int numPosts() {
+        return postAuthors.length;
+    }
+
+    public int numReplies() {
+        return numPosts() - roots;
+    }
+
+    /**
+     * The graph GraphLoader would load from these rows, including co-commenter edges with
+     * the default cap per thread
+     */
+    public GraphData toGraphData() {
+        int[] userIds = new int[users];
+        for (int i = 0; i < users; i++) {
+            userIds[i] = i + 1;
+        }
+        int[] postIds = new int[numPosts()];
+        EdgeList comments = new EdgeList(numReplies());
+        for (int i = 0; i < numPosts(); i++) {
+            postIds[i] = i + 1;
+            if (postParents[i] != 0) {
+                comments.add(postAuthors[i], postParents[i]);
+            }
+        }
+        int maxCoCommenters = AdsorptionConfig.fromSparkConf(new SparkConf(false)).getMaxCoCommenters();
+        EdgeList coComments = CoCommenters.edges(comments, maxCoCommenters);
+        return new GraphData(userIds, postIds, new EdgeList(), comments, coComments);
+    }
+
+    private static int[] shuffledIds(int n, Random random) {
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i + 1;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = ids[i];
+            ids[i] = ids[j];
+            ids[j] = tmp;
+        }
+        return ids;
+    }
+
+    /**
+     * Zipf sampler over ranks 0..n-1 by binary search in the cumulative distribution
+     */
+    static class Zipf {
+        private final double[] cumulative;
+
+        Zipf(int n, double exponent) {
+            cumulative = new double[n];
+            double total = 0.0;
+            for (int k = 0; k < n; k++) {
+                total += 1.0 / Math.pow(k + 1, exponent);
+                cumulative[k] = total;
+            }
+            for (int k = 0; k < n; k++) {
+                cumulative[k] /= total;
+            }
+        }
+
+        int sample(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            int rank = index < 0 ? -index - 1 : index;
+            return Math.min(rank, cumulative.length - 1);
+        }
+    }
+}
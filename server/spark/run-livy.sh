@@ -9,6 +9,10 @@ DB_URL=${DB_URL:-"jdbc:mysql://$DB_HOST:3306/imdb_basic?allowPublicKeyRetrieval=
 DB_USER=${DB_USER:-"admin"}
 DB_PASSWORD=${DB_PASSWORD:-"TIF|UFlfCn7[XU67U~h?A]YGzVyK"}
 
+# Extra Spark settings for the batch as a JSON object, e.g. '{"spark.adsorption.partitions": "200"}'.
+# Settings left out are planned by the job from the size of the graph and the cluster
+LIVY_CONF=${LIVY_CONF:-"{}"}
+
 # Path to the Spark job JAR
 JAR_PATH="target/instalite-adsorption-1.0-SNAPSHOT-jar-with-dependencies.jar"
 
@@ -26,7 +30,8 @@ echo "Submitting job to Livy server at $LIVY_SERVER"
 curl -X POST -H "Content-Type: application/json" -d '{
   "file": "'$(pwd)/$JAR_PATH'",
   "className": "edu.upenn.cis.nets2120.adsorption.AdsorptionRankJob",
-  "args": ["'$DB_URL'", "'$DB_USER'", "'$DB_PASSWORD'"]
+  "args": ["'$DB_URL'", "'$DB_USER'", "'$DB_PASSWORD'"],
+  "conf": '"$LIVY_CONF"'
 }' "$LIVY_SERVER/batches"
 
 echo -e "\nJob submitted to Livy" 
\ No newline at end of file
@@ -0,0 +1,19 @@
+#!/bin/bash
+
+# This script builds the adsorption job and its scale test harness, then runs the
+# job end to end on generated graphs of increasing size against an embedded MariaDB.
+# Settings are system properties, for the harness and for the job alike, e.g.:
+#   ./run-scaletest.sh -Dscaletest.users=10000,100000 -Dscaletest.postsPerUser=20 \
+#                      -Dspark.adsorption.engine=csr -Xmx8g
+# or, to check incremental, warm-start and replay runs against full reruns:
+#   ./run-scaletest.sh -Dscaletest.mode=consistency -Dscaletest.users=1000
+
+# Navigate to scaletest directory
+cd "$(dirname "$0")"
+
+# Install the job so the harness builds against the current sources
+mvn -q -f ../pom.xml install -DskipTests || exit 1
+mvn -q clean package || exit 1
+
+java --add-opens=java.base/sun.nio.ch=ALL-UNNAMED "$@" \
+     -jar target/instalite-adsorption-scaletest-1.0-SNAPSHOT-jar-with-dependencies.jar
@@ -0,0 +1,440 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import ch.vorburger.mariaDB4j.DB;
+import ch.vorburger.mariaDB4j.DBConfigurationBuilder;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * End-to-end scale test: for each graph size, generate a power-law graph into a
+ * database, run AdsorptionRankJob on it and record how long each stage took
+ *
+ * The database is an embedded MariaDB started for the test, unless scaletest.dbUrl
+ * points at a local MySQL (whose users, posts and recommendedPosts tables are dropped
+ * and recreated). The job reads its own spark.adsorption.* settings from system
+ * properties as usual, so one harness compares engines and settings. Every size adds
+ * a row to a CSV file: graph size, generation time, the job's load, per-iteration and
+ * save times, peak heap and the number of recommendations written.
+ *
+ * In consistency mode every size instead checks the CSR engine's saved-state runs against
+ * full reruns (see checkConsistency), and the CSV rows hold how closely their
+ * recommendations match; the process exits with status 1 if a replay doesn't reproduce
+ * the run that saved it.
+ *
+ * Settings (system properties):
+ *   scaletest.mode           scale (default) or consistency
+ *   scaletest.deltaFraction  consistency mode: share of the newest posts held back for the incremental run (default 0.05)
+ *   scaletest.users          comma-separated user counts, one run each (default 1000,10000,100000)
+ *   scaletest.postsPerUser   posts generated per user (default 10)
+ *   scaletest.replyFraction  share of posts that are replies (default 0.6)
+ *   scaletest.skew           Zipf exponent of authors, reply parents and hashtags (default 1.0)
+ *   scaletest.hashtags       hashtag vocabulary size (default 1000)
+ *   scaletest.seed           random seed (default 42)
+ *   scaletest.output         CSV file the results are appended to (default target/scaletest-results.csv,
+ *                            target/scaletest-consistency.csv in consistency mode)
+ *   scaletest.dbUrl, scaletest.dbUser, scaletest.dbPassword   use this database instead of an embedded one
+ */
+public class ScaleTest {
+    private static final String PREFIX = "scaletest.";
+    private static final String DATABASE = "instalite_scaletest";
+    private static final int INSERT_BATCH_SIZE = 5000;
+    private static final long HEAP_SAMPLE_MILLIS = 10;
+
+    private static final String HEADER = "engine,users,posts,replies,generate_ms,load_ms,iterations,"
+            + "mean_iteration_ms,iteration_ms,save_ms,total_ms,peak_heap_mb,rows_written";
+
+    private static final String CONSISTENCY_HEADER = "users,posts,delta_posts,full_iterations,"
+            + "incremental_iterations,incremental_identical_pct,incremental_max_diff,incremental_top10_pct,"
+            + "warm_iterations,warm_identical_pct,warm_max_diff,replay_identical_pct,replay_max_diff";
+
+    // Feed entries compared per user
+    private static final int TOP = 10;
+
+    // Set when a replay didn't reproduce its run
+    private static boolean inconsistent;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = Arrays.stream(System.getProperty(PREFIX + "users", "1000,10000,100000").split(","))
+                .map(String::trim)
+                .mapToInt(Integer::parseInt)
+                .toArray();
+        boolean consistency = "consistency".equals(System.getProperty(PREFIX + "mode", "scale"));
+        String header = consistency ? CONSISTENCY_HEADER : HEADER;
+        Path output = Paths.get(System.getProperty(PREFIX + "output",
+                consistency ? "target/scaletest-consistency.csv" : "target/scaletest-results.csv"));
+
+        DB embedded = null;
+        String dbUrl = System.getProperty(PREFIX + "dbUrl");
+        String dbUser = System.getProperty(PREFIX + "dbUser", "root");
+        String dbPassword = System.getProperty(PREFIX + "dbPassword", "");
+        if (dbUrl == null) {
+            DBConfigurationBuilder dbConfig = DBConfigurationBuilder.newBuilder();
+            // Any free port
+            dbConfig.setPort(0);
+            embedded = DB.newEmbeddedDB(dbConfig.build());
+            embedded.start();
+            embedded.createDB(DATABASE);
+            dbUrl = dbConfig.getURL(DATABASE);
+            System.out.println("Started embedded MariaDB at " + dbUrl);
+        }
+
+        try {
+            boolean newFile = !Files.exists(output);
+            if (output.getParent() != null) {
+                Files.createDirectories(output.getParent());
+            }
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(output,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+                if (newFile) {
+                    out.println(header);
+                }
+                for (int users : sizes) {
+                    String row = consistency
+                            ? checkConsistency(users, dbUrl, dbUser, dbPassword)
+                            : runOnce(users, dbUrl, dbUser, dbPassword);
+                    System.out.println(header);
+                    System.out.println(row);
+                    out.println(row);
+                    out.flush();
+                }
+            }
+            System.out.println("Results appended to " + output.toAbsolutePath());
+        } finally {
+            if (embedded != null) {
+                embedded.stop();
+            }
+        }
+        if (inconsistent) {
+            System.exit(1);
+        }
+    }
+
+    private static SocialGraphGenerator generator(int users) {
+        return new SocialGraphGenerator(users, users * Integer.getInteger(PREFIX + "postsPerUser", 10),
+                Double.parseDouble(System.getProperty(PREFIX + "replyFraction", "0.6")),
+                Double.parseDouble(System.getProperty(PREFIX + "skew", "1.0")),
+                Integer.getInteger(PREFIX + "hashtags", 1000),
+                Long.getLong(PREFIX + "seed", 42L),
+                INSERT_BATCH_SIZE);
+    }
+
+    /**
+     * Generate a graph with this many users, run the job on it and return the CSV row
+     */
+    private static String runOnce(int users, String dbUrl, String dbUser, String dbPassword) throws SQLException {
+        SocialGraphGenerator generator = generator(users);
+        int posts = generator.posts();
+
+        System.out.println("Generating " + users + " users and " + posts + " posts ("
+                + generator.replies() + " replies)");
+        long generateStart = System.nanoTime();
+        try (Connection conn = connect(dbUrl, dbUser, dbPassword)) {
+            generator.generate(conn);
+        }
+        long generateMillis = (System.nanoTime() - generateStart) / 1_000_000;
+
+        // Start every run from a collected heap so earlier sizes don't inflate the peak
+        System.gc();
+        HeapSampler heap = new HeapSampler();
+        heap.start();
+        long runStart = System.nanoTime();
+        AdsorptionRankJob job = new AdsorptionRankJob(dbUrl, dbUser, dbPassword);
+        try {
+            job.initialize();
+            job.run();
+        } finally {
+            heap.stop();
+        }
+        long totalMillis = (System.nanoTime() - runStart) / 1_000_000;
+
+        RunMetrics metrics = job.getMetrics();
+        long[] iterations = metrics.iterationMillis();
+        return String.join(",",
+                job.getConfig().getEngine().toString(),
+                String.valueOf(users),
+                String.valueOf(posts),
+                String.valueOf(generator.replies()),
+                String.valueOf(generateMillis),
+                String.valueOf(metrics.millis(RunMetrics.LOAD)),
+                String.valueOf(iterations.length),
+                String.valueOf(iterations.length == 0 ? 0 : metrics.millis(RunMetrics.ITERATION) / iterations.length),
+                Arrays.stream(iterations).mapToObj(String::valueOf).collect(Collectors.joining(";")),
+                String.valueOf(metrics.millis(RunMetrics.SAVE)),
+                String.valueOf(totalMillis),
+                String.valueOf(heap.peakBytes() / (1024 * 1024)),
+                String.valueOf(countRecommendations(dbUrl, dbUser, dbPassword)));
+    }
+
+    /**
+     * Check the runs that start from a saved state against full runs on the same graph
+     *
+     * The newest replies (deltaFraction of the posts) are held back while a full CSR run
+     * saves its state, then added back. On the complete graph:
+     *   - an incremental run from that state, which only propagates what the new replies changed,
+     *   - a full run, which saves its own state, the reference,
+     *   - a warm-started full run from the reference state,
+     *   - a replay of the reference state, which has to reproduce the reference exactly.
+     * Each is compared with the reference by the share of (user, post) scores that are
+     * identical, the largest score difference, and the share of every user's top entries it
+     * has too. A post that only one of two runs recommends counts with a score of 0 in the other.
+     */
+    private static String checkConsistency(int users, String dbUrl, String dbUser, String dbPassword)
+            throws Exception {
+        SocialGraphGenerator generator = generator(users);
+        int posts = generator.posts();
+        double deltaFraction = Double.parseDouble(System.getProperty(PREFIX + "deltaFraction", "0.05"));
+        // Replies have the highest ids and nothing refers to them, so they can be held back
+        int delta = Math.min(generator.replies(), (int) Math.round(posts * deltaFraction));
+        int firstDelta = posts - delta + 1;
+
+        System.out.println("Generating " + users + " users and " + posts + " posts, holding back the last "
+                + delta + " replies");
+        try (Connection conn = connect(dbUrl, dbUser, dbPassword); Statement stmt = conn.createStatement()) {
+            generator.generate(conn);
+            stmt.executeUpdate("DROP TABLE IF EXISTS posts_delta");
+            stmt.executeUpdate("CREATE TABLE posts_delta AS SELECT * FROM posts WHERE post_id >= " + firstDelta);
+            stmt.executeUpdate("DELETE FROM posts WHERE post_id >= " + firstDelta);
+        }
+
+        Path stateDir = Files.createTempDirectory("scaletest-state");
+        Path savedState = stateDir.resolve("before-delta.snapshot");
+        Path fullState = stateDir.resolve("full.snapshot");
+        try {
+            runJob(dbUrl, dbUser, dbPassword, savedState, "incremental", "false");
+            try (Connection conn = connect(dbUrl, dbUser, dbPassword); Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("INSERT INTO posts SELECT * FROM posts_delta");
+                stmt.executeUpdate("DROP TABLE posts_delta");
+            }
+
+            RunMetrics incrementalRun = runJob(dbUrl, dbUser, dbPassword, savedState, "incremental", "true");
+            Map<Integer, Map<Integer, Integer>> incremental = readScores(dbUrl, dbUser, dbPassword);
+            RunMetrics fullRun = runJob(dbUrl, dbUser, dbPassword, fullState, "incremental", "false");
+            Map<Integer, Map<Integer, Integer>> full = readScores(dbUrl, dbUser, dbPassword);
+            RunMetrics warmRun = runJob(dbUrl, dbUser, dbPassword, fullState, "warmStart", "true");
+            Map<Integer, Map<Integer, Integer>> warm = readScores(dbUrl, dbUser, dbPassword);
+            runJob(dbUrl, dbUser, dbPassword, fullState, "replay", "true");
+            Map<Integer, Map<Integer, Integer>> replayed = readScores(dbUrl, dbUser, dbPassword);
+
+            Comparison incrementalMatch = Comparison.of(full, incremental);
+            Comparison warmMatch = Comparison.of(full, warm);
+            Comparison replayMatch = Comparison.of(full, replayed);
+            if (replayMatch.maxDiff > 0 || replayMatch.identical != replayMatch.pairs) {
+                System.out.println("Replay differs from the run that saved its state: " + replayMatch);
+                inconsistent = true;
+            }
+            System.out.println("Incremental vs full: " + incrementalMatch);
+            System.out.println("Warm start vs full: " + warmMatch);
+            System.out.println("Replay vs full: " + replayMatch);
+            return String.join(",",
+                    String.valueOf(users),
+                    String.valueOf(posts),
+                    String.valueOf(delta),
+                    String.valueOf(fullRun.iterationMillis().length),
+                    String.valueOf(incrementalRun.iterationMillis().length),
+                    String.valueOf(incrementalMatch.identicalPercent()),
+                    String.valueOf(incrementalMatch.maxDiff),
+                    String.valueOf(incrementalMatch.topPercent()),
+                    String.valueOf(warmRun.iterationMillis().length),
+                    String.valueOf(warmMatch.identicalPercent()),
+                    String.valueOf(warmMatch.maxDiff),
+                    String.valueOf(replayMatch.identicalPercent()),
+                    String.valueOf(replayMatch.maxDiff));
+        } finally {
+            Files.deleteIfExists(savedState);
+            Files.deleteIfExists(fullState);
+            Files.deleteIfExists(stateDir);
+        }
+    }
+
+    /**
+     * Run the CSR engine with a state path and one more spark.adsorption setting, on top of the
+     * system properties, and restore them afterwards
+     */
+    private static RunMetrics runJob(String dbUrl, String dbUser, String dbPassword, Path statePath,
+                                     String setting, String value) throws SQLException {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put(AdsorptionConfig.PREFIX + "engine", "csr");
+        settings.put(AdsorptionConfig.PREFIX + "statePath", statePath.toString());
+        settings.put(AdsorptionConfig.PREFIX + setting, value);
+        Map<String, String> previous = new HashMap<>();
+        for (Map.Entry<String, String> entry : settings.entrySet()) {
+            previous.put(entry.getKey(), System.getProperty(entry.getKey()));
+            System.setProperty(entry.getKey(), entry.getValue());
+        }
+        try {
+            AdsorptionRankJob job = new AdsorptionRankJob(dbUrl, dbUser, dbPassword);
+            job.initialize();
+            job.run();
+            return job.getMetrics();
+        } finally {
+            for (Map.Entry<String, String> entry : previous.entrySet()) {
+                if (entry.getValue() == null) {
+                    System.clearProperty(entry.getKey());
+                } else {
+                    System.setProperty(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Every user's published scores by post
+     */
+    private static Map<Integer, Map<Integer, Integer>> readScores(String dbUrl, String dbUser, String dbPassword)
+            throws SQLException {
+        Map<Integer, Map<Integer, Integer>> scores = new HashMap<>();
+        try (Connection conn = connect(dbUrl, dbUser, dbPassword);
+             PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT user_id, post_id, score FROM " + RecommendationWriter.TABLE);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                scores.computeIfAbsent(rs.getInt(1), user -> new HashMap<>()).put(rs.getInt(2), rs.getInt(3));
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * How closely one run's recommendations match a reference run's
+     */
+    private static class Comparison {
+        long pairs;
+        long identical;
+        int maxDiff;
+        long topEntries;
+        long topMatches;
+
+        static Comparison of(Map<Integer, Map<Integer, Integer>> expected, Map<Integer, Map<Integer, Integer>> actual) {
+            Comparison result = new Comparison();
+            Set<Integer> users = new HashSet<>(expected.keySet());
+            users.addAll(actual.keySet());
+            for (int user : users) {
+                Map<Integer, Integer> expectedScores = expected.getOrDefault(user, Collections.emptyMap());
+                Map<Integer, Integer> actualScores = actual.getOrDefault(user, Collections.emptyMap());
+                Set<Integer> posts = new HashSet<>(expectedScores.keySet());
+                posts.addAll(actualScores.keySet());
+                for (int post : posts) {
+                    int diff = Math.abs(expectedScores.getOrDefault(post, 0) - actualScores.getOrDefault(post, 0));
+                    result.pairs++;
+                    if (diff == 0) {
+                        result.identical++;
+                    }
+                    result.maxDiff = Math.max(result.maxDiff, diff);
+                }
+                List<Integer> expectedTop = top(expectedScores);
+                Set<Integer> actualTop = new HashSet<>(top(actualScores));
+                result.topEntries += expectedTop.size();
+                result.topMatches += expectedTop.stream().filter(actualTop::contains).count();
+            }
+            return result;
+        }
+
+        /**
+         * A user's TOP posts by score, ties broken by post id
+         */
+        private static List<Integer> top(Map<Integer, Integer> scores) {
+            return scores.entrySet().stream()
+                    .sorted(Map.Entry.<Integer, Integer>comparingByValue().reversed()
+                            .thenComparing(Map.Entry.comparingByKey()))
+                    .limit(TOP)
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+        }
+
+        double identicalPercent() {
+            return pairs == 0 ? 100.0 : 100.0 * identical / pairs;
+        }
+
+        double topPercent() {
+            return topEntries == 0 ? 100.0 : 100.0 * topMatches / topEntries;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d of %d scores identical (%.1f%%), largest difference %d, "
+                    + "%.1f%% of top-%d entries shared", identical, pairs, identicalPercent(), maxDiff,
+                    topPercent(), TOP);
+        }
+    }
+
+    private static Connection connect(String dbUrl, String dbUser, String dbPassword) throws SQLException {
+        Properties props = new Properties();
+        props.setProperty("user", dbUser);
+        props.setProperty("password", dbPassword);
+        props.setProperty("rewriteBatchedStatements", "true");
+        return DriverManager.getConnection(dbUrl, props);
+    }
+
+    private static long countRecommendations(String dbUrl, String dbUser, String dbPassword) throws SQLException {
+        try (Connection conn = connect(dbUrl, dbUser, dbPassword);
+             PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM " + RecommendationWriter.TABLE);
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Polls heap usage on a daemon thread and keeps the highest value seen
+     * Sampling the whole heap, rather than adding up each pool's own peak, gives the
+     * largest amount that was actually in use at one time.
+     */
+    private static class HeapSampler implements Runnable {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final Thread thread = new Thread(this, "heap-sampler");
+        private volatile boolean running = true;
+        private volatile long peak;
+
+        void start() {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            running = false;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long peakBytes() {
+            return peak;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(HEAP_SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Writes a random power-law social graph into the users and posts tables of create_tables.js
+ *
+ * Posts are root posts followed by replies (posts with a parent_post), which is all
+ * the job reads: replies become comment edges and co-commenter edges. Post authors,
+ * reply parents and hashtags are drawn from Zipf distributions over shuffled ranks,
+ * so a few users write most posts and a few threads get most replies, as on a real
+ * feed. skew is the Zipf exponent: 0 is uniform, around 1 is typical of social graphs.
+ * Rows are generated and inserted in batches, so graphs of millions of edges never
+ * have to fit in memory. The same arguments always give the same rows, up to created_at,
+ * which is spread over the 30 days before the run.
+ */
+public class SocialGraphGenerator {
+    // users and posts as in create_tables.js, without the foreign key into the IMDB names table
+    private static final String[] SCHEMA = {
+            "DROP TABLE IF EXISTS " + RecommendationWriter.STAGING_TABLE,
+            // Fingerprints of the dropped recommendations would keep a differential write from refilling them
+            "DROP TABLE IF EXISTS " + RecommendationWriter.FINGERPRINT_TABLE,
+            "DROP TABLE IF EXISTS " + RecommendationWriter.TABLE,
+            "DROP TABLE IF EXISTS posts",
+            "DROP TABLE IF EXISTS users",
+            "CREATE TABLE users (" +
+                    "user_id INT NOT NULL AUTO_INCREMENT, " +
+                    "username VARCHAR(255), " +
+                    "hashed_password VARCHAR(255), " +
+                    "linked_nconst VARCHAR(255), " +
+                    "actor_nconst VARCHAR(255), " +
+                    "PRIMARY KEY (user_id))",
+            "CREATE TABLE posts (" +
+                    "post_id INT AUTO_INCREMENT, " +
+                    "author_id INT NOT NULL, " +
+                    "parent_post INT DEFAULT NULL, " +
+                    "title VARCHAR(255) DEFAULT NULL, " +
+                    "content TEXT, " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "image_url VARCHAR(255) DEFAULT NULL, " +
+                    "hashtags VARCHAR(255) DEFAULT NULL, " +
+                    "source_site VARCHAR(50) DEFAULT NULL, " +
+                    "original_post_id VARCHAR(255) DEFAULT NULL, " +
+                    "PRIMARY KEY (post_id), " +
+                    "FOREIGN KEY (parent_post) REFERENCES posts(post_id), " +
+                    "FOREIGN KEY (author_id) REFERENCES users(user_id))",
+            "CREATE TABLE " + RecommendationWriter.TABLE + " (" +
+                    "user_id INT NOT NULL, " +
+                    "post_id INT NOT NULL, " +
+                    "score INT, " +
+                    "PRIMARY KEY (user_id, post_id), " +
+                    "FOREIGN KEY (user_id) REFERENCES users(user_id), " +
+                    "FOREIGN KEY (post_id) REFERENCES posts(post_id))"
+    };
+
+    // Posts are spread evenly over the 30 days before now, in post id order
+    private static final long HISTORY_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    private static final int MAX_HASHTAGS_PER_POST = 3;
+
+    private final int users;
+    private final int posts;
+    private final double replyFraction;
+    private final double skew;
+    private final int hashtags;
+    private final long seed;
+    private final int batchSize;
+
+    /**
+     * @param replyFraction share of posts that are replies
+     * @param hashtags      size of the hashtag vocabulary (0 leaves posts.hashtags empty)
+     */
+    public SocialGraphGenerator(int users, int posts, double replyFraction, double skew, int hashtags,
+                                long seed, int batchSize) {
+        this.users = users;
+        this.posts = posts;
+        this.replyFraction = replyFraction;
+        this.skew = skew;
+        this.hashtags = hashtags;
+        this.seed = seed;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Number of root posts; post ids 1..roots are roots, the rest are replies
+     */
+    public int roots() {
+        return Math.max(1, (int) Math.round(posts * (1 - replyFraction)));
+    }
+
+    public int posts() {
+        return posts;
+    }
+
+    public int replies() {
+        return posts - roots();
+    }
+
+    /**
+     * Drop and recreate users, posts and recommendedPosts (dropping its fingerprints), then fill users and posts
+     */
+    public void generate(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            for (String sql : SCHEMA) {
+                stmt.executeUpdate(sql);
+            }
+        }
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            insertUsers(conn);
+            insertPosts(conn);
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private void insertUsers(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO users (user_id, username, hashed_password) VALUES (?, ?, ?)")) {
+            int batchCount = 0;
+            for (int user = 1; user <= users; user++) {
+                stmt.setInt(1, user);
+                stmt.setString(2, "user" + user);
+                stmt.setString(3, "x");
+                stmt.addBatch();
+                if (++batchCount >= batchSize) {
+                    stmt.executeBatch();
+                    conn.commit();
+                    batchCount = 0;
+                }
+            }
+            if (batchCount > 0) {
+                stmt.executeBatch();
+                conn.commit();
+            }
+        }
+    }
+
+    private void insertPosts(Connection conn) throws SQLException {
+        Random random = new Random(seed);
+        int roots = roots();
+
+        // Popularity ranks are shuffled so that popular users and threads aren't simply the low ids
+        Zipf authors = new Zipf(users, skew);
+        int[] userByRank = shuffledIds(users, random);
+        Zipf parents = new Zipf(roots, skew);
+        int[] rootByRank = shuffledIds(roots, random);
+        Zipf tags = hashtags > 0 ? new Zipf(hashtags, skew) : null;
+
+        long start = System.currentTimeMillis() - HISTORY_MILLIS;
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO posts (post_id, author_id, parent_post, title, content, created_at, hashtags) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            int batchCount = 0;
+            for (int post = 1; post <= posts; post++) {
+                stmt.setInt(1, post);
+                stmt.setInt(2, userByRank[authors.sample(random)]);
+                if (post <= roots) {
+                    stmt.setNull(3, Types.INTEGER);
+                    stmt.setString(4, "Post " + post);
+                } else {
+                    stmt.setInt(3, rootByRank[parents.sample(random)]);
+                    stmt.setNull(4, Types.VARCHAR);
+                }
+                stmt.setString(5, "Generated post " + post);
+                stmt.setTimestamp(6, new Timestamp(start + HISTORY_MILLIS * (post - 1) / posts));
+                stmt.setString(7, tags != null ? hashtags(tags, random) : null);
+                stmt.addBatch();
+                if (++batchCount >= batchSize) {
+                    stmt.executeBatch();
+                    conn.commit();
+                    batchCount = 0;
+                }
+            }
+            if (batchCount > 0) {
+                stmt.executeBatch();
+                conn.commit();
+            }
+        }
+    }
+
+    /**
+     * Comma-separated hashtags of one post, or null for a post without any
+     */
+    private static String hashtags(Zipf tags, Random random) {
+        int count = random.nextInt(MAX_HASHTAGS_PER_POST + 1);
+        if (count == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("#tag").append(tags.sample(random) + 1);
+        }
+        return sb.toString();
+    }
+
+    private static int[] shuffledIds(int n, Random random) {
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i + 1;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = ids[i];
+            ids[i] = ids[j];
+            ids[j] = tmp;
+        }
+        return ids;
+    }
+
+    /**
+     * Zipf sampler over ranks 0..n-1 by binary search in the cumulative distribution
+     */
+    static class Zipf {
+        private final double[] cumulative;
+
+        Zipf(int n, double exponent) {
+            cumulative = new double[n];
+            double total = 0.0;
+            for (int k = 0; k < n; k++) {
+                total += 1.0 / Math.pow(k + 1, exponent);
+                cumulative[k] = total;
+            }
+            for (int k = 0; k < n; k++) {
+                cumulative[k] /= total;
+            }
+        }
+
+        int sample(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            int rank = index < 0 ? -index - 1 : index;
+            return Math.min(rank, cumulative.length - 1);
+        }
+    }
+}
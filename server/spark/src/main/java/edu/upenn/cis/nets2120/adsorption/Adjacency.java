@@ -0,0 +1,127 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Outgoing weighted edges of one vertex, as parallel arrays sorted by target
+ */
+public class Adjacency implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] targets;
+    private final double[] weights;
+
+    public Adjacency(int[] targets, double[] weights) {
+        this.targets = targets;
+        this.weights = weights;
+    }
+
+    public int size() {
+        return targets.length;
+    }
+
+    public int targetAt(int i) {
+        return targets[i];
+    }
+
+    public double weightAt(int i) {
+        return weights[i];
+    }
+
+    /**
+     * The edges in [from, to), keeping their weights
+     */
+    public Adjacency slice(int from, int to) {
+        return new Adjacency(Arrays.copyOfRange(targets, from, to), Arrays.copyOfRange(weights, from, to));
+    }
+
+    /**
+     * Normalize a vertex's typed edges (packed with EdgeType.pack) into weights
+     * Each edge gets its type's base weight divided by the source's out-degree for
+     * that type. When the base weights of the types the source has add up to more
+     * than 1, they are scaled down to add up to 1, so label mass never grows from one
+     * iteration to the next; repeated edges to the same target add up.
+     */
+    public static Adjacency fromPackedEdges(long[] packed, int count) {
+        return fromPackedEdges(packed, 0, count);
+    }
+
+    /**
+     * Same as fromPackedEdges(long[], int), for the edges in packed[from, to)
+     */
+    public static Adjacency fromPackedEdges(long[] packed, int from, int to) {
+        int count = to - from;
+        int[] degreeByType = new int[EdgeType.values().length];
+        for (int i = from; i < to; i++) {
+            degreeByType[EdgeType.unpackType(packed[i]).ordinal()]++;
+        }
+        double typeTotal = 0.0;
+        for (EdgeType type : EdgeType.values()) {
+            if (degreeByType[type.ordinal()] > 0) {
+                typeTotal += type.getBaseWeight();
+            }
+        }
+        double scale = Math.max(1.0, typeTotal);
+
+        // Sorting the packed values orders them by target, since the type sits in the low bits
+        long[] sorted = Arrays.copyOfRange(packed, from, to);
+        Arrays.sort(sorted);
+
+        int[] targets = new int[count];
+        double[] weights = new double[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int target = EdgeType.unpackTarget(sorted[i]);
+            EdgeType type = EdgeType.unpackType(sorted[i]);
+            double weight = type.getBaseWeight() / degreeByType[type.ordinal()] / scale;
+            if (size > 0 && targets[size - 1] == target) {
+                weights[size - 1] += weight;
+            } else {
+                targets[size] = target;
+                weights[size] = weight;
+                size++;
+            }
+        }
+        return new Adjacency(Arrays.copyOf(targets, size), Arrays.copyOf(weights, size));
+    }
+
+    /**
+     * Growable buffer of packed typed edges; the combiner while a vertex's edges are aggregated
+     */
+    public static class Builder implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private long[] packed = new long[4];
+        private int size;
+
+        public Builder add(long packedEdge) {
+            if (size == packed.length) {
+                packed = Arrays.copyOf(packed, size * 2);
+            }
+            packed[size++] = packedEdge;
+            return this;
+        }
+
+        public Builder addAll(Builder other) {
+            if (size + other.size > packed.length) {
+                packed = Arrays.copyOf(packed, Math.max(size + other.size, packed.length * 2));
+            }
+            System.arraycopy(other.packed, 0, packed, size, other.size);
+            size += other.size;
+            return this;
+        }
+
+        public Adjacency build() {
+            return fromPackedEdges(packed, size);
+        }
+
+        int size() {
+            return size;
+        }
+
+        long get(int i) {
+            return packed[i];
+        }
+    }
+}
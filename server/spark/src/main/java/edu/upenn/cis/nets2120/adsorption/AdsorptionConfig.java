@@ -0,0 +1,341 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.storage.StorageLevel;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Tunable settings for AdsorptionRankJob
+ *
+ * Values are read from the Spark configuration under the "spark.adsorption." prefix,
+ * so they can be passed as --conf to spark-submit, in the "conf" map of a Livy batch,
+ * or as -Dspark.adsorption.* system properties when the jar is run directly.
+ *
+ * Settings that depend on the size of the graph (engine, partitions, storage level,
+ * checkpoint interval, iterations, topK, splitDegree) are filled in by ExecutionPlanner
+ * when they are not set; a value that is set always wins over the plan.
+ */
+public class AdsorptionConfig implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String PREFIX = "spark.adsorption.";
+
+    // Settings this config was read from, to tell set values from defaults and to apply a plan
+    private final transient SparkConf conf;
+
+    /**
+     * Where the propagation runs: Spark RDDs, Spark SQL DataFrames, in-memory CSR arrays in this
+     * JVM, or approximately by random walks over the CSR graph. AUTO lets ExecutionPlanner pick
+     * between CSR and SPARK from the size of the graph before anything is loaded.
+     */
+    public enum Engine {
+        AUTO,
+        SPARK,
+        DATAFRAME,
+        CSR,
+        RANDOM_WALK;
+
+        /**
+         * Whether this engine needs a Spark session (it loads and builds the graph as RDDs)
+         */
+        public boolean usesSpark() {
+            return this == SPARK || this == DATAFRAME;
+        }
+    }
+
+    // Engine used to run adsorption
+    private final Engine engine;
+
+    // Worker threads for the CSR engine (0 uses every available core)
+    private final int threads;
+
+    // Parallel id ranges (connections) used to read each table (0 uses every available core)
+    private final int loadPartitions;
+
+    // JDBC fetch size for graph loading
+    private final int fetchSize;
+
+    // Maximum number of iterations for adsorption
+    private final int maxIterations;
+
+    // Stop once no label weight changes by more than this in an iteration
+    private final double convergenceThreshold;
+
+    // Keep at most this many labels per vertex after each iteration (0 disables)
+    private final int topK;
+
+    // Drop labels whose weight falls below this after each iteration (0 disables)
+    private final double epsilon;
+
+    // Number of recommended posts written per user
+    private final int topN;
+
+    // Partitions shared by the adjacency and label RDDs (0 uses Spark's default parallelism)
+    private final int partitions;
+
+    // How the RDD engine keeps its adjacency and labels, a StorageLevel name such as MEMORY_AND_DISK_SER
+    private final String storageLevel;
+
+    // Out-degree above which the RDD engine splits a vertex's edges over several partitions
+    // (0 picks it from the degree statistics of the graph, negative disables)
+    private final int splitDegree;
+
+    // Truncate the label lineage every this many iterations (0 disables)
+    private final int checkpointInterval;
+
+    // Reliable checkpoint directory; when unset the lineage is cut with local checkpoints
+    private final String checkpointDir;
+
+    // Commenters of a thread (the replies to a post) that get co-commenter edges with each other;
+    // later first replies are left out (0 keeps all of them)
+    private final int maxCoCommenters;
+
+    // Rows per JDBC batch (and transaction) when writing recommendations
+    private final int writeBatchSize;
+
+    // Most connections writing recommendations at once in each JVM; further Spark tasks wait for
+    // one of them (at least one)
+    private final int writeConnections;
+
+    // Write only the recommendation rows that changed since the last run, found by per-user
+    // fingerprints; false rewrites a staging table and swaps it in
+    private final boolean differentialWrite;
+
+    // Snapshot the CSR engine keeps its graph and converged labels in; unset disables. The Spark
+    // engines ignore it, so the labels never have to reach the driver
+    private final String statePath;
+
+    // Update the labels in statePath with what was added since the last run instead of a full run
+    private final boolean incremental;
+
+    // Start full runs from the labels in statePath instead of each user's own label
+    private final boolean warmStart;
+
+    // Rerun the CSR engine on the graph saved in statePath instead of loading it from the database
+    private final boolean replay;
+
+    // File the per-stage run metrics are written to, Prometheus text if it ends in .prom, else JSON; empty disables
+    private final String metricsPath;
+
+    // Random walks started from every user by the random walk engine
+    private final int walksPerUser;
+
+    // Steps after which a random walk ends if it hasn't restarted yet
+    private final int walkLength;
+
+    // Chance that a random walk ends after each step
+    private final double restartProbability;
+
+    // Seed of the random walks
+    private final long walkSeed;
+
+    // Also run exact adsorption and report the overlap of the top posts when there are at most
+    // this many users (0 disables)
+    private final int walkValidateUsers;
+
+    private AdsorptionConfig(SparkConf conf) {
+        this.conf = conf;
+        this.engine = Engine.valueOf(conf.get(PREFIX + "engine", "auto").toUpperCase());
+        this.threads = conf.getInt(PREFIX + "threads", 0);
+        this.loadPartitions = conf.getInt(PREFIX + "loadPartitions", 0);
+        this.fetchSize = conf.getInt(PREFIX + "fetchSize", 10000);
+        this.maxIterations = conf.getInt(PREFIX + "maxIterations", 15);
+        this.convergenceThreshold = conf.getDouble(PREFIX + "convergenceThreshold", 0.01);
+        this.topK = conf.getInt(PREFIX + "topK", 100);
+        this.epsilon = conf.getDouble(PREFIX + "epsilon", 1e-4);
+        this.topN = conf.getInt(PREFIX + "topN", 100);
+        this.partitions = conf.getInt(PREFIX + "partitions", 0);
+        this.storageLevel = conf.get(PREFIX + "storageLevel", "MEMORY_AND_DISK").toUpperCase();
+        this.splitDegree = conf.getInt(PREFIX + "splitDegree", 0);
+        this.checkpointInterval = conf.getInt(PREFIX + "checkpointInterval", 5);
+        this.checkpointDir = conf.get(PREFIX + "checkpointDir", null);
+        this.maxCoCommenters = conf.getInt(PREFIX + "maxCoCommenters", 50);
+        this.writeBatchSize = conf.getInt(PREFIX + "writeBatchSize", 5000);
+        this.writeConnections = conf.getInt(PREFIX + "writeConnections", 8);
+        this.differentialWrite = conf.getBoolean(PREFIX + "differentialWrite", true);
+        this.statePath = conf.get(PREFIX + "statePath", null);
+        this.incremental = conf.getBoolean(PREFIX + "incremental", false);
+        this.warmStart = conf.getBoolean(PREFIX + "warmStart", false);
+        this.replay = conf.getBoolean(PREFIX + "replay", false);
+        String metricsPath = conf.get(PREFIX + "metricsPath", "adsorption-metrics.json");
+        this.metricsPath = metricsPath.isEmpty() ? null : metricsPath;
+        this.walksPerUser = conf.getInt(PREFIX + "walksPerUser", 200);
+        this.walkLength = conf.getInt(PREFIX + "walkLength", 10);
+        this.restartProbability = conf.getDouble(PREFIX + "restartProbability", 0.15);
+        this.walkSeed = conf.getLong(PREFIX + "walkSeed", 42L);
+        this.walkValidateUsers = conf.getInt(PREFIX + "walkValidateUsers", 0);
+    }
+
+    public static AdsorptionConfig fromSparkConf(SparkConf conf) {
+        return new AdsorptionConfig(conf);
+    }
+
+    /**
+     * Whether a setting (without the prefix) was given, rather than left at its default
+     */
+    public boolean isSet(String name) {
+        return conf != null && conf.contains(PREFIX + name);
+    }
+
+    /**
+     * Value of a setting (without the prefix) as given or planned, or null if it is at its default
+     */
+    public String get(String name) {
+        return conf != null ? conf.get(PREFIX + name, null) : null;
+    }
+
+    /**
+     * This config with planned values (setting name without the prefix to value) for the
+     * settings that aren't set
+     */
+    public AdsorptionConfig withPlanned(Map<String, String> planned) {
+        SparkConf merged = conf != null ? conf.clone() : new SparkConf(false);
+        for (Map.Entry<String, String> setting : planned.entrySet()) {
+            merged.setIfMissing(PREFIX + setting.getKey(), setting.getValue());
+        }
+        return new AdsorptionConfig(merged);
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getLoadPartitions() {
+        return loadPartitions;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public double getConvergenceThreshold() {
+        return convergenceThreshold;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public double getEpsilon() {
+        return epsilon;
+    }
+
+    public int getTopN() {
+        return topN;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public StorageLevel getStorageLevel() {
+        return StorageLevel.fromString(storageLevel);
+    }
+
+    public int getSplitDegree() {
+        return splitDegree;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public String getCheckpointDir() {
+        return checkpointDir;
+    }
+
+    public int getMaxCoCommenters() {
+        return maxCoCommenters;
+    }
+
+    public int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    public int getWriteConnections() {
+        return writeConnections;
+    }
+
+    public boolean isDifferentialWrite() {
+        return differentialWrite;
+    }
+
+    public String getStatePath() {
+        return statePath;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public boolean isWarmStart() {
+        return warmStart;
+    }
+
+    public boolean isReplay() {
+        return replay;
+    }
+
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+
+    public int getWalksPerUser() {
+        return walksPerUser;
+    }
+
+    public int getWalkLength() {
+        return walkLength;
+    }
+
+    public double getRestartProbability() {
+        return restartProbability;
+    }
+
+    public long getWalkSeed() {
+        return walkSeed;
+    }
+
+    public int getWalkValidateUsers() {
+        return walkValidateUsers;
+    }
+
+    @Override
+    public String toString() {
+        return "engine=" + engine
+                + ", threads=" + threads
+                + ", loadPartitions=" + loadPartitions
+                + ", fetchSize=" + fetchSize
+                + ", maxIterations=" + maxIterations
+                + ", convergenceThreshold=" + convergenceThreshold
+                + ", topK=" + topK + ", epsilon=" + epsilon
+                + ", topN=" + topN
+                + ", partitions=" + partitions
+                + ", storageLevel=" + storageLevel
+                + ", splitDegree=" + splitDegree
+                + ", checkpointInterval=" + checkpointInterval
+                + ", checkpointDir=" + checkpointDir
+                + ", maxCoCommenters=" + maxCoCommenters
+                + ", writeBatchSize=" + writeBatchSize
+                + ", writeConnections=" + writeConnections
+                + ", differentialWrite=" + differentialWrite
+                + ", statePath=" + statePath
+                + ", incremental=" + incremental
+                + ", warmStart=" + warmStart
+                + ", replay=" + replay
+                + ", metricsPath=" + metricsPath
+                + ", walksPerUser=" + walksPerUser + ", walkLength=" + walkLength
+                + ", restartProbability=" + restartProbability + ", walkSeed=" + walkSeed
+                + ", walkValidateUsers=" + walkValidateUsers;
+    }
+}
@@ -0,0 +1,153 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.apache.spark.api.java.Optional;
+import org.apache.spark.serializer.KryoRegistrator;
+import scala.Tuple2;
+
+/**
+ * Registers every type the adsorption RDDs shuffle, persist or broadcast with Kryo
+ *
+ * Registered classes are written as a small id instead of their class name. The sorted
+ * id arrays of label vectors and adjacencies are delta-encoded as variable-length ints,
+ * so most ids take one or two bytes instead of four, and only the live prefix of the
+ * growable arrays is written. Set spark.kryo.registrationRequired=true to find types
+ * that are still missing here.
+ */
+public class AdsorptionKryoRegistrator implements KryoRegistrator {
+    @Override
+    public void registerClasses(Kryo kryo) {
+        kryo.register(LabelVector.class, new LabelVectorSerializer());
+        kryo.register(Adjacency.class, new AdjacencySerializer());
+        kryo.register(Adjacency.Builder.class, new AdjacencyBuilderSerializer());
+        kryo.register(TopPosts.class, new TopPostsSerializer());
+        kryo.register(CoCommenters.class);
+        kryo.register(VertexDictionary.class);
+        kryo.register(Tuple2.class);
+        kryo.register(Optional.class);
+        kryo.register(int[].class);
+        kryo.register(int[][].class);
+        kryo.register(long[].class);
+        kryo.register(double[].class);
+    }
+
+    /**
+     * Size, then every label as the (non-negative) difference to the previous one, then the weights
+     */
+    static class LabelVectorSerializer extends Serializer<LabelVector> {
+        @Override
+        public void write(Kryo kryo, Output output, LabelVector vector) {
+            output.writeVarInt(vector.size(), true);
+            int previous = 0;
+            for (int i = 0; i < vector.size(); i++) {
+                output.writeVarInt(vector.labelAt(i) - previous, true);
+                previous = vector.labelAt(i);
+            }
+            for (int i = 0; i < vector.size(); i++) {
+                output.writeDouble(vector.weightAt(i));
+            }
+        }
+
+        @Override
+        public LabelVector read(Kryo kryo, Input input, Class<LabelVector> type) {
+            int size = input.readVarInt(true);
+            int[] labels = new int[size];
+            double[] weights = new double[size];
+            int previous = 0;
+            for (int i = 0; i < size; i++) {
+                previous += input.readVarInt(true);
+                labels[i] = previous;
+            }
+            for (int i = 0; i < size; i++) {
+                weights[i] = input.readDouble();
+            }
+            return new LabelVector(labels, weights, size);
+        }
+    }
+
+    /**
+     * Same layout as LabelVectorSerializer: adjacency targets are sorted too
+     */
+    static class AdjacencySerializer extends Serializer<Adjacency> {
+        @Override
+        public void write(Kryo kryo, Output output, Adjacency adjacency) {
+            output.writeVarInt(adjacency.size(), true);
+            int previous = 0;
+            for (int i = 0; i < adjacency.size(); i++) {
+                output.writeVarInt(adjacency.targetAt(i) - previous, true);
+                previous = adjacency.targetAt(i);
+            }
+            for (int i = 0; i < adjacency.size(); i++) {
+                output.writeDouble(adjacency.weightAt(i));
+            }
+        }
+
+        @Override
+        public Adjacency read(Kryo kryo, Input input, Class<Adjacency> type) {
+            int size = input.readVarInt(true);
+            int[] targets = new int[size];
+            double[] weights = new double[size];
+            int previous = 0;
+            for (int i = 0; i < size; i++) {
+                previous += input.readVarInt(true);
+                targets[i] = previous;
+            }
+            for (int i = 0; i < size; i++) {
+                weights[i] = input.readDouble();
+            }
+            return new Adjacency(targets, weights);
+        }
+    }
+
+    /**
+     * Packed typed edges (see EdgeType.pack) of a partially combined adjacency, as variable-length longs
+     */
+    static class AdjacencyBuilderSerializer extends Serializer<Adjacency.Builder> {
+        @Override
+        public void write(Kryo kryo, Output output, Adjacency.Builder builder) {
+            output.writeVarInt(builder.size(), true);
+            for (int i = 0; i < builder.size(); i++) {
+                output.writeVarLong(builder.get(i), true);
+            }
+        }
+
+        @Override
+        public Adjacency.Builder read(Kryo kryo, Input input, Class<Adjacency.Builder> type) {
+            int size = input.readVarInt(true);
+            Adjacency.Builder builder = new Adjacency.Builder();
+            for (int i = 0; i < size; i++) {
+                builder.add(input.readVarLong(true));
+            }
+            return builder;
+        }
+    }
+
+    /**
+     * Capacity and the kept (post, weight) pairs in heap order, which re-offering keeps a valid heap
+     */
+    static class TopPostsSerializer extends Serializer<TopPosts> {
+        @Override
+        public void write(Kryo kryo, Output output, TopPosts top) {
+            output.writeVarInt(top.capacity(), true);
+            output.writeVarInt(top.size(), true);
+            for (int i = 0; i < top.size(); i++) {
+                output.writeVarInt(top.postAt(i), true);
+                output.writeDouble(top.weightAt(i));
+            }
+        }
+
+        @Override
+        public TopPosts read(Kryo kryo, Input input, Class<TopPosts> type) {
+            TopPosts top = new TopPosts(input.readVarInt(true));
+            int size = input.readVarInt(true);
+            for (int i = 0; i < size; i++) {
+                int post = input.readVarInt(true);
+                top.offer(post, input.readDouble());
+            }
+            return top;
+        }
+    }
+}
@@ -1,28 +1,39 @@
 package edu.upenn.cis.nets2120.adsorption;
 
+import org.apache.spark.HashPartitioner;
+import org.apache.spark.Partitioner;
+import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaPairRDD;
-import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.serializer.KryoSerializer;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.DoubleAccumulator;
+import org.apache.spark.util.LongAccumulator;
+import org.apache.spark.util.StatCounter;
 import scala.Tuple2;
+import scala.collection.JavaConverters;
 
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.Serializable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -30,40 +41,40 @@ import java.util.Date;
  * Adsorption algorithm implementation for InstaLite
  * This job builds a graph of users, posts, hashtags and runs adsorption
  * to assign weights to posts for feed ranking
+ *
+ * The job is deliberately not Serializable: the functions it hands to Spark only
+ * capture locals and broadcasts, and capturing the job by mistake fails at submission
+ * instead of shipping it with every task.
  */
-public class AdsorptionRankJob implements Serializable {
-    private static final long serialVersionUID = 1L;
-    
-    // Maximum number of iterations for adsorption
-    private static final int MAX_ITERATIONS = 15;
-    
-    // Convergence threshold for adsorption
-    private static final double CONVERGENCE_THRESHOLD = 0.01;
+public class AdsorptionRankJob {
+    // Previous labels of a vertex that had none
+    private static final LabelVector EMPTY_LABELS = new LabelVector();
     
     // Database connection parameters
     private String dbUrl;
     private String dbUser;
     private String dbPassword;
     
-    // Spark context
-    private transient JavaSparkContext sc;
+    // Tunable settings, read from the Spark configuration
+    private AdsorptionConfig config;
+    
+    // Spark context, only started when a Spark engine is selected
+    private JavaSparkContext sc;
     private SparkSession spark;
     private static PrintWriter logWriter;
     private static final String LOG_FILE = "adsorption.log";
     
+    // Time, sizes and resources of each stage of the run
+    private final RunMetrics metrics = new RunMetrics();
+    
     public AdsorptionRankJob(String dbUrl, String dbUser, String dbPassword) {
         this.dbUrl = dbUrl;
         this.dbUser = dbUser;
         this.dbPassword = dbPassword;
         
-        // Initialize Spark
-        spark = SparkSession
-                .builder()
-                .appName("AdsorptionRankJob")
-                .config("spark.master", "local[4]")
-                .getOrCreate();
-        
-        sc = new JavaSparkContext(spark.sparkContext());
+        // A fresh SparkConf picks up spark.* system properties, including the ones spark-submit sets,
+        // without starting Spark
+        config = AdsorptionConfig.fromSparkConf(new SparkConf());
         
         // Initialize log file
         try {
@@ -78,14 +89,72 @@ public class AdsorptionRankJob implements Serializable {
     
     /**
      * Initialize Spark session and context
+     * Skipped for the in-memory engine, which doesn't need Spark at all
      */
     public void initialize() {
+        if (config.getEngine() == AdsorptionConfig.Engine.AUTO) {
+            config = config.withPlanned(Collections.singletonMap("engine", planEngine().name()));
+        }
+        if (!config.getEngine().usesSpark()) {
+            log("Using " + config.getEngine() + " engine, not starting Spark");
+            return;
+        }
+        
+        // Kryo with registered classes for every shuffle, persist and broadcast, unless the
+        // submitter picked a serializer. No payload is cyclic or shared within a record, so
+        // reference tracking is off. Run locally on every core unless spark-submit or Livy
+        // set a master
+        SparkConf sparkConf = new SparkConf()
+                .setIfMissing("spark.master", "local[*]")
+                .setIfMissing("spark.serializer", KryoSerializer.class.getName())
+                .setIfMissing("spark.kryo.registrator", AdsorptionKryoRegistrator.class.getName())
+                .setIfMissing("spark.kryo.referenceTracking", "false");
+        
+        spark = SparkSession
+                .builder()
+                .appName("AdsorptionRankJob")
+                .config(sparkConf)
+                .getOrCreate();
+        
+        sc = new JavaSparkContext(spark.sparkContext());
+        if (config.getCheckpointDir() != null) {
+            sc.setCheckpointDir(config.getCheckpointDir());
+        }
+        metrics.attach(sc);
+    }
+    
+    /**
+     * Engine for the graph in the database, from its row counts; Spark if they can't be read
+     */
+    private AdsorptionConfig.Engine planEngine() {
+        try {
+            long[] size = new GraphLoader(dbUrl, dbUser, dbPassword, config).estimateSize();
+            return new ExecutionPlanner(config).engine(size[0], size[1], size[2],
+                    new SparkConf().get("spark.master", null), Runtime.getRuntime().maxMemory());
+        } catch (SQLException e) {
+            log("Warning: Error estimating the graph size, using the Spark engine: " + e.getMessage());
+            return AdsorptionConfig.Engine.SPARK;
+        }
+    }
+    
+    /**
+     * Settings of the run, including the planned ones once planning has happened
+     */
+    public AdsorptionConfig getConfig() {
+        return config;
+    }
+    
+    /**
+     * Metrics of each stage of the last run
+     */
+    public RunMetrics getMetrics() {
+        return metrics;
     }
     
     /**
      * Log a message to both console and log file
      */
-    private static void log(String message) {
+    static void log(String message) {
         System.out.println(message);
         if (logWriter != null) {
             logWriter.println(message);
@@ -113,55 +182,57 @@ public class AdsorptionRankJob implements Serializable {
      */
     public void run() throws SQLException {
         log("Starting AdsorptionRankJob");
+        log("Configuration: " + config);
         
-        // 1. Load data from database
-        Map<String, List<String>> graphData = loadGraphData();
-        
-        // Log counts of users and posts
-        log("Loaded " + graphData.get("users").size() + " users from database");
-        log("Loaded " + graphData.get("posts").size() + " posts from database");
-        log("Found " + graphData.get("user_post_likes").size() + " user-post likes");
-        log("Found " + graphData.get("user_post_comments").size() + " user-post comments");
-        log("Found " + graphData.get("user_user_follows").size() + " user-user follows");
-        
-        // 2. Build the graph using Spark RDDs
-        JavaPairRDD<String, String> userToPostLikes = buildRDD(graphData.get("user_post_likes"));
-        JavaPairRDD<String, String> postToUserLikes = userToPostLikes.mapToPair(t -> new Tuple2<>(t._2, t._1));
-        
-        JavaPairRDD<String, String> userToPostComments = buildRDD(graphData.get("user_post_comments"));
-        JavaPairRDD<String, String> postToUserComments = userToPostComments.mapToPair(t -> new Tuple2<>(t._2, t._1));
-        
-        JavaPairRDD<String, String> userToUser = buildRDD(graphData.get("user_user_follows"));
-        
-        // 3. Combine all edges
-        JavaPairRDD<String, Tuple2<String, String>> allEdges = userToPostLikes
-                .mapToPair(t -> new Tuple2<>(t._1 + "|" + t._2, new Tuple2<>("user", "post")))
-                .union(postToUserLikes.mapToPair(t -> new Tuple2<>(t._1 + "|" + t._2, new Tuple2<>("post", "user"))))
-                .union(userToPostComments.mapToPair(t -> new Tuple2<>(t._1 + "|" + t._2, new Tuple2<>("user", "post"))))
-                .union(postToUserComments.mapToPair(t -> new Tuple2<>(t._1 + "|" + t._2, new Tuple2<>("post", "user"))))
-                .union(userToUser.mapToPair(t -> new Tuple2<>(t._1 + "|" + t._2, new Tuple2<>("user", "user"))));
-        
-        // 4. Assign weights to edges
-        JavaPairRDD<String, Map<String, Double>> edgeWeights = assignWeights(
-                userToPostLikes, postToUserLikes, 
-                userToPostComments, postToUserComments, 
-                userToUser);
-        
-        // 5. Initialize user label weights
-        List<String> users = graphData.get("users");
-        JavaPairRDD<String, Map<String, Double>> labelWeights = initializeUserLabels(users);
-        
-        // 6. Run adsorption iterations
-        JavaPairRDD<String, Map<String, Double>> finalWeights = runAdsorption(
-                labelWeights, edgeWeights, allEdges);
-        
-        // 7. Extract post weights
-        List<Tuple2<String, Map<String, Double>>> postWeights = finalWeights
-                .filter(t -> t._1.startsWith("post:"))
-                .collect();
-        
-        // 8. Save results to database
-        saveResults(postWeights);
+        try {
+            // 1. Load data from database, 2. map database ids to dense vertex ids (everything up to
+            // saveResults works on these) and 3. run adsorption on the selected engine. The Spark
+            // engines leave their recommendations in an RDD, the others collect them in this JVM
+            VertexDictionary dictionary;
+            List<Tuple2<Integer, TopPosts>> recommendations = null;
+            JavaPairRDD<Integer, TopPosts> distributedRecommendations = null;
+            Path statePath = config.getStatePath() != null ? Paths.get(config.getStatePath()) : null;
+            if (config.getEngine() == AdsorptionConfig.Engine.CSR) {
+                AdsorptionState previous = config.isIncremental() || config.isWarmStart() || config.isReplay()
+                        ? loadState(statePath) : null;
+                AdsorptionState state = runCsrAdsorption(previous, statePath);
+                dictionary = state.dictionary;
+                RunMetrics.Stage select = metrics.start(RunMetrics.SELECT);
+                List<Tuple2<Integer, LabelVector>> postWeights =
+                        CsrAdsorptionEngine.postLabels(state.labels, dictionary);
+                recommendations = TopPosts.select(postWeights, dictionary.count(VertexType.USER), config.getTopN());
+                select.records(recommendations.size()).finish();
+            } else if (config.getEngine() == AdsorptionConfig.Engine.RANDOM_WALK) {
+                RunMetrics.Stage load = metrics.start(RunMetrics.LOAD);
+                GraphData graph = loadGraphData();
+                load.records(records(graph)).finish();
+                dictionary = VertexDictionary.build(graph);
+                log("Built vertex dictionary with " + dictionary.size() + " vertices");
+                recommendations = runRandomWalk(graph, dictionary);
+            } else {
+                if (statePath != null) {
+                    // Saving or seeding from a snapshot would hold every vertex's labels in the driver
+                    log("The Spark engines keep their labels on the executors: " + statePath + " is neither"
+                            + " saved nor read, incremental, warm-start and replay runs need the CSR engine");
+                }
+                RunMetrics.Stage load = metrics.start(RunMetrics.LOAD);
+                DistributedGraphData graph = loadDistributedGraphData();
+                load.records(graph.userIds.length + graph.postIds.length + graph.hashtagIds.length).finish();
+                dictionary = VertexDictionary.build(graph.userIds, graph.postIds, graph.hashtagIds);
+                log("Built vertex dictionary with " + dictionary.size() + " vertices");
+                distributedRecommendations = runSparkAdsorption(graph, dictionary);
+            }
+            
+            // 4. Save results to database
+            RunMetrics.Stage save = metrics.start(RunMetrics.SAVE);
+            save.records(distributedRecommendations != null
+                    ? saveResults(distributedRecommendations, dictionary)
+                    : saveResults(recommendations, dictionary)).finish();
+            log("Stage timings: " + metrics);
+            metrics.setSucceeded(true);
+        } finally {
+            writeMetrics();
+        }
         
         // Close the log file
         closeLog();
@@ -170,508 +241,713 @@ public class AdsorptionRankJob implements Serializable {
     }
     
     /**
-     * Load graph data from the database
+     * Write the run's metrics to the configured path; failures only log, the run itself is done
      */
-    private Map<String, List<String>> loadGraphData() throws SQLException {
-        Map<String, List<String>> result = new HashMap<>();
-        result.put("users", new ArrayList<>());
-        result.put("posts", new ArrayList<>());
-        result.put("user_post_likes", new ArrayList<>());
-        result.put("user_post_comments", new ArrayList<>());
-        result.put("user_user_follows", new ArrayList<>());
-        
-        Connection conn = null;
-        
+    private void writeMetrics() {
+        if (config.getMetricsPath() == null) {
+            return;
+        }
         try {
-            log("Connecting to database: " + dbUrl);
-            conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
-            
-            // Load users
-            PreparedStatement userStmt = conn.prepareStatement("SELECT user_id FROM users");
-            ResultSet userRs = userStmt.executeQuery();
-            
-            int userCount = 0;
-            while (userRs.next()) {
-                String userId = "user:" + userRs.getInt("user_id");
-                result.get("users").add(userId);
-                userCount++;
+            metrics.write(Paths.get(config.getMetricsPath()));
+            log("Wrote run metrics to " + config.getMetricsPath());
+        } catch (IOException e) {
+            log("Warning: Error writing run metrics: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Run adsorption in this JVM, updating the previous state incrementally or warm-starting
+     * from it when enabled, and save the new state if a state path is set
+     */
+    private AdsorptionState runCsrAdsorption(AdsorptionState previous, Path statePath) throws SQLException {
+        if (config.isReplay()) {
+            if (previous != null && previous.graph != null) {
+                return replay(previous, statePath);
             }
-            log("Loaded " + userCount + " users from users table");
-            
-            // We don't use post_likes table anymore
-            log("Skipping post_likes table as it doesn't exist");
-            
-            // Load comment edges (replies)
-            try {
-                PreparedStatement commentStmt = conn.prepareStatement(
-                    "SELECT author_id, parent_post FROM posts WHERE parent_post IS NOT NULL");
-                ResultSet commentRs = commentStmt.executeQuery();
-                while (commentRs.next()) {
-                    String userId = "user:" + commentRs.getInt("author_id");
-                    String postId = "post:" + commentRs.getInt("parent_post");
-                    result.get("user_post_comments").add(userId + "|" + postId);
-                }
-                log("Loaded comment relationship data");
-            } catch (SQLException e) {
-                log("Warning: Error loading comments as edges: " + e.getMessage());
+            log("No saved graph to replay, loading the graph from the database");
+        }
+        
+        RunMetrics.Stage load = metrics.start(RunMetrics.LOAD);
+        GraphLoader loader = new GraphLoader(dbUrl, dbUser, dbPassword, config);
+        long watermark = statePath != null ? loader.watermark() : 0;
+        AdsorptionState state;
+        if (config.isIncremental() && previous != null && previous.graph != null) {
+            log("Updating labels incrementally since " + new Timestamp(previous.watermark));
+            GraphData delta = loader.loadSince(previous.watermark, previous.dictionary);
+            load.records(records(delta)).finish();
+            IncrementalAdsorption incremental = new IncrementalAdsorption(config, metrics);
+            state = incremental.update(previous, delta, watermark);
+            config = incremental.getConfig();
+        } else {
+            if (config.isIncremental()) {
+                log("No saved graph to update incrementally, running a full pass");
             }
-            
-            // Create user-user relationships based on co-commenting patterns
-            try {
-                PreparedStatement coCommentStmt = conn.prepareStatement(
-                    "SELECT DISTINCT a.author_id as user1, b.author_id as user2 " +
-                    "FROM posts a JOIN posts b ON a.parent_post = b.parent_post " +
-                    "WHERE a.parent_post IS NOT NULL AND a.author_id != b.author_id");
-                ResultSet coCommentRs = coCommentStmt.executeQuery();
-                while (coCommentRs.next()) {
-                    String user1 = "user:" + coCommentRs.getInt("user1");
-                    String user2 = "user:" + coCommentRs.getInt("user2");
-                    result.get("user_user_follows").add(user1 + "|" + user2);
-                }
-                log("Created user-user edges based on co-commenting");
-            } catch (SQLException e) {
-                log("Warning: Error creating user-user edges: " + e.getMessage());
-            };
-            
-            // Load posts
-            PreparedStatement postStmt = conn.prepareStatement("SELECT post_id FROM posts");
-            ResultSet postRs = postStmt.executeQuery();
-            
-            int postCount = 0;
-            while (postRs.next()) {
-                String postId = "post:" + postRs.getInt("post_id");
-                result.get("posts").add(postId);
-                postCount++;
+            GraphData graph = loadGraphData();
+            load.records(records(graph)).finish();
+            RunMetrics.Stage build = metrics.start(RunMetrics.BUILD);
+            VertexDictionary dictionary = VertexDictionary.build(graph);
+            log("Built vertex dictionary with " + dictionary.size() + " vertices");
+            CsrGraph outEdges = CsrGraph.fromGraphData(graph, dictionary);
+            build.records(outEdges.numEdges()).finish();
+            planInMemory(dictionary, outEdges);
+            LabelVector[] labels = new CsrAdsorptionEngine(config, metrics)
+                    .propagate(outEdges, dictionary, initialLabels(previous, dictionary));
+            state = new AdsorptionState(graph, outEdges, dictionary, labels, watermark);
+        }
+        
+        saveState(state, statePath);
+        return state;
+    }
+    
+    /**
+     * Plan the in-memory engine's settings for the graph, with this JVM's heap and threads
+     */
+    private void planInMemory(VertexDictionary dictionary, CsrGraph outEdges) {
+        config = new ExecutionPlanner(config).planInMemory(ExecutionPlanner.Profile.of(dictionary, outEdges));
+    }
+    
+    /**
+     * Rerun adsorption on the graph saved in the state, without reading users or posts from the database
+     */
+    private AdsorptionState replay(AdsorptionState previous, Path statePath) {
+        log("Replaying the saved graph of " + previous.dictionary.size() + " vertices");
+        CsrGraph outEdges = previous.outEdges != null
+                ? previous.outEdges
+                : CsrGraph.fromGraphData(previous.graph, previous.dictionary);
+        planInMemory(previous.dictionary, outEdges);
+        LabelVector[] initialLabels = config.isWarmStart()
+                ? initialLabels(previous, previous.dictionary)
+                : CsrAdsorptionEngine.initializeUserLabels(previous.dictionary);
+        LabelVector[] labels = new CsrAdsorptionEngine(config, metrics)
+                .propagate(outEdges, previous.dictionary, initialLabels);
+        AdsorptionState state = new AdsorptionState(
+                previous.graph, outEdges, previous.dictionary, labels, previous.watermark);
+        saveState(state, statePath);
+        return state;
+    }
+    
+    /**
+     * Estimate every user's top posts with random walks over the weighted graph
+     * On graphs with at most walkValidateUsers users, exact adsorption runs as well and the
+     * share of its top posts that the walks found is logged.
+     */
+    private List<Tuple2<Integer, TopPosts>> runRandomWalk(GraphData graph, VertexDictionary dictionary) {
+        if (config.isIncremental() || config.isWarmStart() || config.isReplay()) {
+            log("The random walk engine keeps no state, running a full pass");
+        }
+        RunMetrics.Stage build = metrics.start(RunMetrics.BUILD);
+        CsrGraph outEdges = CsrGraph.fromGraphData(graph, dictionary);
+        build.records(outEdges.numEdges()).finish();
+        List<Tuple2<Integer, TopPosts>> recommendations =
+                new RandomWalkAdsorption(config, metrics).recommend(outEdges, dictionary);
+        
+        int users = dictionary.count(VertexType.USER);
+        if (config.getWalkValidateUsers() > 0 && users <= config.getWalkValidateUsers()) {
+            RunMetrics.Stage validate = metrics.start(RunMetrics.VALIDATE);
+            // The exact run's iterations are kept out of this run's metrics
+            LabelVector[] labels = new CsrAdsorptionEngine(config)
+                    .propagate(outEdges, dictionary, CsrAdsorptionEngine.initializeUserLabels(dictionary));
+            List<Tuple2<Integer, TopPosts>> exact = TopPosts.select(
+                    CsrAdsorptionEngine.postLabels(labels, dictionary), users, config.getTopN());
+            double overlap = RandomWalkAdsorption.overlap(recommendations, exact);
+            validate.records(exact.size()).finish();
+            log("Random walk top " + config.getTopN() + " overlap with exact adsorption: " + overlap
+                    + " over " + exact.size() + " users");
+        }
+        return recommendations;
+    }
+    
+    /**
+     * Vertices plus edges of a loaded graph, the records counted for the load stage
+     */
+    private static long records(GraphData graph) {
+        return graph.userIds.length + graph.postIds.length + graph.hashtagIds.length + graph.userPostLikes.size()
+                + graph.userPostComments.size() + graph.userUserFollows.size()
+                + graph.postHashtags.size() + graph.userHashtags.size();
+    }
+    
+    /**
+     * Labels to start a full run from: the previous run's labels when warm-starting, otherwise
+     * each user's own label
+     */
+    private LabelVector[] initialLabels(AdsorptionState previous, VertexDictionary dictionary) {
+        if (config.isWarmStart() && previous != null) {
+            log("Warm-starting from the labels of " + previous.dictionary.size() + " saved vertices");
+            return previous.labelsFor(dictionary);
+        }
+        return CsrAdsorptionEngine.initializeUserLabels(dictionary);
+    }
+    
+    /**
+     * Previous run's state, or null if there is none
+     */
+    private static AdsorptionState loadState(Path statePath) {
+        if (statePath == null) {
+            log("Incremental, warm-start and replay modes need " + AdsorptionConfig.PREFIX + "statePath");
+            return null;
+        }
+        try {
+            AdsorptionState state = AdsorptionState.load(statePath);
+            if (state == null) {
+                log("No saved state at " + statePath);
             }
-            log("Loaded " + postCount + " posts from posts table");
-            
-            // If there are no interactions, create default connections to ensure recommendations
-            if (result.get("user_post_likes").isEmpty() && result.get("user_post_comments").isEmpty() && result.get("user_user_follows").isEmpty()) {
-                log("No interactions found. Creating default connections for recommendation generation...");
-                
-                // Create default connections between users and some posts
-                List<String> users = result.get("users");
-                List<String> posts = result.get("posts");
-                
-                if (!users.isEmpty() && !posts.isEmpty()) {
-                    // For each user, connect to a subset of posts (up to 10 or all if fewer)
-                    for (String user : users) {
-                        int connectCount = Math.min(10, posts.size());
-                        for (int i = 0; i < connectCount; i++) {
-                            // Create a connection with every 10th post or similar distribution
-                            int postIndex = (i * posts.size() / connectCount) % posts.size();
-                            String post = posts.get(postIndex);
-                            
-                            // Add a default connection with low weight
-                            result.get("user_post_likes").add(user + "|" + post);
-                            log("Created default connection between " + user + " and " + post);
-                        }
-                    }
-                    
-                    // Create connections between users if there are multiple users
-                    if (users.size() > 1) {
-                        for (int i = 0; i < users.size(); i++) {
-                            for (int j = 0; j < users.size(); j++) {
-                                if (i != j) {
-                                    result.get("user_user_follows").add(users.get(i) + "|" + users.get(j));
-                                    log("Created default connection between " + users.get(i) + " and " + users.get(j));
-                                }
-                            }
-                        }
+            return state;
+        } catch (IOException e) {
+            log("Warning: Error loading adsorption state: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    private static void saveState(AdsorptionState state, Path statePath) {
+        if (statePath == null) {
+            return;
+        }
+        try {
+            state.save(statePath);
+            log("Saved adsorption state to " + statePath);
+        } catch (IOException e) {
+            log("Warning: Error saving adsorption state: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Run adsorption with Spark and return every user's top posts, keyed by user vertex id
+     * The graph is built as RDDs for both Spark engines; only the iterations differ. The top
+     * posts are left uncomputed, to be selected and written partition by partition.
+     */
+    private JavaPairRDD<Integer, TopPosts> runSparkAdsorption(DistributedGraphData graph,
+                                                                  VertexDictionary dictionary) {
+        // 1. Build the graph using Spark RDDs, encoding ids on the executors
+        RunMetrics.Stage build = metrics.start(RunMetrics.BUILD);
+        Broadcast<VertexDictionary> dictionaryBroadcast = sc.broadcast(dictionary);
+        JavaPairRDD<Integer, Integer> userToPostLikes = buildRDD(
+                graph.userPostLikes, dictionaryBroadcast, VertexType.USER, VertexType.POST);
+        JavaPairRDD<Integer, Integer> postToUserLikes = userToPostLikes.mapToPair(t -> new Tuple2<>(t._2, t._1));
+        
+        JavaPairRDD<Integer, Integer> userToPostComments = buildRDD(
+                graph.userPostComments, dictionaryBroadcast, VertexType.USER, VertexType.POST);
+        JavaPairRDD<Integer, Integer> postToUserComments = userToPostComments.mapToPair(t -> new Tuple2<>(t._2, t._1));
+        
+        JavaPairRDD<Integer, Integer> userToUser = buildRDD(
+                graph.userUserFollows, dictionaryBroadcast, VertexType.USER, VertexType.USER);
+        
+        JavaPairRDD<Integer, Integer> postToHashtag = buildRDD(
+                graph.postHashtags, dictionaryBroadcast, VertexType.POST, VertexType.HASHTAG);
+        JavaPairRDD<Integer, Integer> userToHashtag = buildRDD(
+                graph.userHashtags, dictionaryBroadcast, VertexType.USER, VertexType.HASHTAG);
+        
+        // Log counts of the edges, which also materializes the cached edge RDDs
+        long likeCount = userToPostLikes.count();
+        long commentCount = userToPostComments.count();
+        long followCount = userToUser.count();
+        long postHashtagCount = postToHashtag.count();
+        long userHashtagCount = userToHashtag.count();
+        log("Found " + likeCount + " user-post likes");
+        log("Found " + commentCount + " user-post comments");
+        log("Found " + followCount + " user-user follows");
+        log("Found " + postHashtagCount + " post-hashtag and " + userHashtagCount + " user-hashtag edges");
+        
+        // 2. Tag the edges with their types, and plan the run from their out-degrees and the
+        // memory Spark has for caching
+        JavaPairRDD<Integer, Long> typedEdges = typeEdges(
+                userToPostLikes, postToUserLikes, 
+                userToPostComments, postToUserComments, 
+                userToUser, postToHashtag, userToHashtag);
+        config = new ExecutionPlanner(config).plan(ExecutionPlanner.Profile.of(dictionary, typedEdges),
+                sc.defaultParallelism(), storageMemory());
+        
+        // Adjacency and labels share one partitioner so the per-iteration joins don't shuffle
+        int partitions = config.getPartitions() > 0 ? config.getPartitions() : sc.defaultParallelism();
+        Partitioner partitioner = new HashPartitioner(partitions);
+        
+        // 3. Assign weights to edges
+        JavaPairRDD<Integer, Adjacency> edgeWeights = assignWeights(typedEdges, partitioner, config.getStorageLevel());
+        
+        // Materialize the adjacency here, so its shuffle is measured as part of the build, and
+        // take its out-degree statistics to find the vertices whose edges are worth splitting
+        StatCounter degrees = edgeWeights.values().mapToDouble(Adjacency::size).stats();
+        log("Built adjacency of " + degrees.count() + " source vertices, out-degree mean "
+                + (degrees.count() == 0 ? 0.0 : degrees.mean()) + ", max " + (long) Math.max(0.0, degrees.max()));
+        HotVertices hotVertices = HotVertices.find(edgeWeights,
+                HotVertices.threshold(degrees, partitions, config.getSplitDegree()), partitions, dictionary.size());
+        if (!hotVertices.isEmpty()) {
+            log("Splitting the edges of " + hotVertices.size() + " vertices with more than "
+                    + hotVertices.getThreshold() + " out-edges into " + hotVertices.numSlices() + " slices");
+        }
+        build.records(2 * likeCount + 2 * commentCount + followCount
+                + 2 * postHashtagCount + 2 * userHashtagCount).finish();
+        
+        // 4. Initialize user label weights
+        JavaPairRDD<Integer, LabelVector> labelWeights = initializeUserLabels(
+                CsrAdsorptionEngine.initializeUserLabels(dictionary), partitioner);
+        
+        // 5. Run adsorption iterations, on RDDs of label vectors or on exploded DataFrame rows
+        JavaPairRDD<Integer, LabelVector> finalWeights;
+        if (config.getEngine() == AdsorptionConfig.Engine.DATAFRAME) {
+            finalWeights = new DataFrameAdsorptionEngine(spark, config, metrics)
+                    .propagate(edgeWeights, labelWeights, dictionary.count(VertexType.USER), partitioner);
+        } else {
+            finalWeights = runAdsorption(labelWeights, edgeWeights, hotVertices, dictionary, partitioner);
+        }
+        // 6. Select each user's top posts: every post hands its weight for a user label to that
+        // user's bounded heap. Nothing reaches the driver: the selection runs in the save
+        // stage's job, on the executors that write its result
+        int topN = config.getTopN();
+        int firstPost = dictionary.offset(VertexType.POST);
+        int endPost = firstPost + dictionary.count(VertexType.POST);
+        return finalWeights
+                .filter(t -> t._1 >= firstPost && t._1 < endPost)
+                .flatMapToPair(t -> {
+                    LabelVector labels = t._2;
+                    List<Tuple2<Integer, Tuple2<Integer, Double>>> candidates = new ArrayList<>(labels.size());
+                    for (int i = 0; i < labels.size(); i++) {
+                        candidates.add(new Tuple2<>(labels.labelAt(i), new Tuple2<>(t._1, labels.weightAt(i))));
                     }
-                }
-            }
-            
-            // Print some stats about the data
-            log("Loaded " + result.get("users").size() + " users");
-            log("Loaded " + result.get("user_post_likes").size() + " user-post likes");
-            log("Loaded " + result.get("user_post_comments").size() + " user-post comments");
-            log("Loaded " + result.get("user_user_follows").size() + " user-user relationships");
-            log("Loaded " + result.get("posts").size() + " posts");
-            
-        } finally {
-            if (conn != null) {
-                conn.close();
-            }
+                    return candidates.iterator();
+                })
+                .aggregateByKey(new TopPosts(topN),
+                        (top, candidate) -> top.offer(candidate._1, candidate._2),
+                        TopPosts::merge);
+    }
+    
+    /**
+     * Load graph data from the database into driver memory, for the in-memory engine
+     */
+    private GraphData loadGraphData() throws SQLException {
+        log("Connecting to database: " + dbUrl);
+        GraphData result = new GraphLoader(dbUrl, dbUser, dbPassword, config).loadLocal();
+        
+        // If there are no interactions, create default connections to ensure recommendations
+        if (result.userPostLikes.isEmpty() && result.userPostComments.isEmpty() && result.userUserFollows.isEmpty()) {
+            addDefaultConnections(result);
         }
         
+        // Print some stats about the data
+        log("Loaded " + result.userIds.length + " users");
+        log("Loaded " + result.userPostLikes.size() + " user-post likes");
+        log("Loaded " + result.userPostComments.size() + " user-post comments");
+        log("Loaded " + result.userUserFollows.size() + " user-user relationships");
+        log("Loaded " + result.postIds.length + " posts");
+        log("Loaded " + result.hashtagIds.length + " hashtags, " + result.postHashtags.size() + " post-hashtag and "
+                + result.userHashtags.size() + " user-hashtag edges");
+        
         return result;
     }
     
     /**
-     * Build RDD from list of edge strings in format "source|target"
+     * Load graph data from the database straight into partitioned RDDs, for the Spark engines
      */
-    private JavaPairRDD<String, String> buildRDD(List<String> edges) {
-        List<Tuple2<String, String>> tuples = edges.stream()
-                .map(edge -> {
-                    String[] parts = edge.split("\\|");
-                    return new Tuple2<>(parts[0], parts[1]);
-                })
-                .collect(Collectors.toList());
+    private DistributedGraphData loadDistributedGraphData() throws SQLException {
+        log("Connecting to database: " + dbUrl);
+        DistributedGraphData result = new GraphLoader(dbUrl, dbUser, dbPassword, config).loadDistributed(spark);
+        
+        // If there are no interactions, create default connections to ensure recommendations.
+        // This only happens on tiny graphs, so the default edges are built on the driver
+        if (result.userPostComments.isEmpty() && result.userUserFollows.isEmpty()) {
+            GraphData defaults = new GraphData(result.userIds, result.postIds,
+                    new EdgeList(), new EdgeList(), new EdgeList());
+            addDefaultConnections(defaults);
+            result = new DistributedGraphData(result.userIds, result.postIds, result.hashtagIds,
+                    parallelizeEdges(defaults.userPostLikes), result.userPostComments,
+                    parallelizeEdges(defaults.userUserFollows), result.postHashtags, result.userHashtags);
+        }
         
+        return result;
+    }
+    
+    /**
+     * Ship a driver-side edge list of database ids to Spark
+     */
+    private JavaPairRDD<Integer, Integer> parallelizeEdges(EdgeList edges) {
+        List<Tuple2<Integer, Integer>> tuples = new ArrayList<>(edges.size());
+        for (int i = 0; i < edges.size(); i++) {
+            tuples.add(new Tuple2<>(edges.source(i), edges.target(i)));
+        }
         return sc.parallelizePairs(tuples);
     }
     
     /**
-     * Assign weights to edges based on node type
+     * Create default connections between users and posts when the graph has no interactions,
+     * so that recommendations can still be generated
      */
-    private JavaPairRDD<String, Map<String, Double>> assignWeights(
-            JavaPairRDD<String, String> userToPostLikes,
-            JavaPairRDD<String, String> postToUserLikes,
-            JavaPairRDD<String, String> userToPostComments,
-            JavaPairRDD<String, String> postToUserComments,
-            JavaPairRDD<String, String> userToUser) {
-        
-        // Count outgoing edges per node
-        JavaPairRDD<String, Integer> userPostLikesCount = userToPostLikes.mapToPair(t -> new Tuple2<>(t._1, 1))
-                .reduceByKey(Integer::sum);
+    private static void addDefaultConnections(GraphData graph) {
+        log("No interactions found. Creating default connections for recommendation generation...");
         
-        JavaPairRDD<String, Integer> userPostCommentsCount = userToPostComments.mapToPair(t -> new Tuple2<>(t._1, 1))
-                .reduceByKey(Integer::sum);
+        int[] users = graph.userIds;
+        int[] posts = graph.postIds;
         
-        JavaPairRDD<String, Integer> userFriendCount = userToUser.mapToPair(t -> new Tuple2<>(t._1, 1))
-                .reduceByKey(Integer::sum);
+        if (users.length == 0 || posts.length == 0) {
+            return;
+        }
         
-        JavaPairRDD<String, Integer> postUserLikesCount = postToUserLikes.mapToPair(t -> new Tuple2<>(t._1, 1))
-                .reduceByKey(Integer::sum);
+        // For each user, connect to a subset of posts (up to 10 or all if fewer)
+        for (int user : users) {
+            int connectCount = Math.min(10, posts.length);
+            for (int i = 0; i < connectCount; i++) {
+                // Create a connection with every 10th post or similar distribution
+                int postIndex = (i * posts.length / connectCount) % posts.length;
+                int post = posts[postIndex];
                 
-        JavaPairRDD<String, Integer> postUserCommentsCount = postToUserComments.mapToPair(t -> new Tuple2<>(t._1, 1))
-                .reduceByKey(Integer::sum);
-        
-        // Calculate edge weights
-        // Likes get 0.3 weight
-        JavaPairRDD<String, Double> userPostLikesWeights = userToPostLikes
-                .join(userPostLikesCount)
-                .mapToPair(t -> {
-                    String user = t._1;
-                    String post = t._2._1;
-                    int count = t._2._2;
-                    return new Tuple2<>(user + "|" + post, 0.3 / count);
-                });
-        
-        // Comments get 0.5 weight (stronger signal than likes)
-        JavaPairRDD<String, Double> userPostCommentsWeights = userToPostComments
-                .join(userPostCommentsCount)
-                .mapToPair(t -> {
-                    String user = t._1;
-                    String post = t._2._1;
-                    int count = t._2._2;
-                    return new Tuple2<>(user + "|" + post, 0.5 / count);
-                });
-        
-        // User-user edges get 0.2 weight
-        JavaPairRDD<String, Double> userFriendWeights = userToUser
-                .join(userFriendCount)
-                .mapToPair(t -> {
-                    String user = t._1;
-                    String friend = t._2._1;
-                    int count = t._2._2;
-                    return new Tuple2<>(user + "|" + friend, 0.2 / count);
-                });
-        
-        // Post to user weights for likes
-        JavaPairRDD<String, Double> postUserLikesWeights = postToUserLikes
-                .join(postUserLikesCount)
-                .mapToPair(t -> {
-                    String post = t._1;
-                    String user = t._2._1;
-                    int count = t._2._2;
-                    return new Tuple2<>(post + "|" + user, 1.0 / count);
-                });
-                
-        // Post to user weights for comments
-        JavaPairRDD<String, Double> postUserCommentsWeights = postToUserComments
-                .join(postUserCommentsCount)
-                .mapToPair(t -> {
-                    String post = t._1;
-                    String user = t._2._1;
-                    int count = t._2._2;
-                    return new Tuple2<>(post + "|" + user, 1.0 / count);
-                });
-        
-        // Combine all weights into a map per node
-        JavaPairRDD<String, Double> allWeights = userPostLikesWeights
-                .union(userPostCommentsWeights)
-                .union(userFriendWeights)
-                .union(postUserLikesWeights)
-                .union(postUserCommentsWeights);
-        
-        // Transform to format: node -> {target: weight, ...}
-        return allWeights.mapToPair(t -> {
-                    String[] parts = t._1.split("\\|");
-                    return new Tuple2<>(parts[0], new Tuple2<>(parts[1], t._2));
-                })
-                .groupByKey()
-                .mapToPair(t -> {
-                    Map<String, Double> weights = new HashMap<>();
-                    t._2.forEach(pair -> weights.put(pair._1, pair._2));
-                    return new Tuple2<>(t._1, weights);
-                });
+                // Add a default connection with low weight
+                graph.userPostLikes.add(user, post);
+                log("Created default connection between user:" + user + " and post:" + post);
+            }
+        }
+        
+        // Create connections between users if there are multiple users
+        if (users.length > 1) {
+            for (int i = 0; i < users.length; i++) {
+                for (int j = 0; j < users.length; j++) {
+                    if (i != j) {
+                        graph.userUserFollows.add(users[i], users[j]);
+                        log("Created default connection between user:" + users[i] + " and user:" + users[j]);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Build RDD of (source, target) vertex ids from an RDD of database id pairs
+     * Edges whose endpoints are not in the dictionary are dropped
+     */
+    private static JavaPairRDD<Integer, Integer> buildRDD(JavaPairRDD<Integer, Integer> edges,
+                                                   Broadcast<VertexDictionary> dictionary,
+                                                   VertexType sourceType, VertexType targetType) {
+        return edges
+                .mapToPair(t -> new Tuple2<>(
+                        dictionary.value().encode(sourceType, t._1),
+                        dictionary.value().encode(targetType, t._2)))
+                .filter(t -> t._1 >= 0 && t._2 >= 0)
+                .persist(StorageLevel.MEMORY_AND_DISK());
+    }
+    
+    /**
+     * Storage memory of the driver and every executor registered so far
+     */
+    private long storageMemory() {
+        long bytes = 0;
+        for (Tuple2<Object, Object> memory : JavaConverters.mapAsJavaMapConverter(
+                sc.sc().getExecutorMemoryStatus()).asJava().values()) {
+            bytes += (Long) memory._1();
+        }
+        return bytes;
+    }
+    
+    /**
+     * Tag every edge with its type: (source, packed target and type)
+     */
+    private static JavaPairRDD<Integer, Long> typeEdges(
+            JavaPairRDD<Integer, Integer> userToPostLikes,
+            JavaPairRDD<Integer, Integer> postToUserLikes,
+            JavaPairRDD<Integer, Integer> userToPostComments,
+            JavaPairRDD<Integer, Integer> postToUserComments,
+            JavaPairRDD<Integer, Integer> userToUser,
+            JavaPairRDD<Integer, Integer> postToHashtag,
+            JavaPairRDD<Integer, Integer> userToHashtag) {
+        
+        // Hashtag edges go both ways, the reverse ones are swapped here
+        return userToPostLikes
+                .mapValues(target -> EdgeType.USER_LIKES_POST.pack(target))
+                .union(userToPostComments.mapValues(target -> EdgeType.USER_COMMENTS_POST.pack(target)))
+                .union(userToUser.mapValues(target -> EdgeType.USER_USER.pack(target)))
+                .union(postToUserLikes.mapValues(target -> EdgeType.POST_LIKED_BY_USER.pack(target)))
+                .union(postToUserComments.mapValues(target -> EdgeType.POST_COMMENTED_BY_USER.pack(target)))
+                .union(postToHashtag.mapValues(target -> EdgeType.POST_HAS_HASHTAG.pack(target)))
+                .union(postToHashtag.mapToPair(t -> new Tuple2<>(t._2, EdgeType.HASHTAG_TAGS_POST.pack(t._1))))
+                .union(userToHashtag.mapValues(target -> EdgeType.USER_INTERESTED_IN_HASHTAG.pack(target)))
+                .union(userToHashtag.mapToPair(t -> new Tuple2<>(t._2, EdgeType.HASHTAG_INTERESTS_USER.pack(t._1))));
     }
     
     /**
-     * Initialize user labels for adsorption
-     * Each user gets a label with value 1.0
+     * Assign weights to edges based on node type
+     * All typed edges are shuffled once by source; each source's per-type out-degrees
+     * and normalized weights are then computed locally from its combined edge list.
      */
-    private JavaPairRDD<String, Map<String, Double>> initializeUserLabels(List<String> users) {
-        List<Tuple2<String, Map<String, Double>>> initialLabels = new ArrayList<>();
+    private static JavaPairRDD<Integer, Adjacency> assignWeights(JavaPairRDD<Integer, Long> typedEdges,
+                                                                 Partitioner partitioner,
+                                                                 StorageLevel storageLevel) {
+        // Transform to format: node -> [targets], [weights]
+        // The adjacency is static across iterations, so it is partitioned and kept once
+        return typedEdges
+                .combineByKey(
+                        edge -> new Adjacency.Builder().add(edge),
+                        Adjacency.Builder::add,
+                        Adjacency.Builder::addAll,
+                        partitioner)
+                .mapValues(Adjacency.Builder::build)
+                .persist(storageLevel);
+    }
+    
+    /**
+     * Initialize labels for adsorption from per-vertex initial labels (see initialLabels)
+     * On a cold start each user gets its own label with value 1.0; label ids are user vertex ids
+     */
+    private JavaPairRDD<Integer, LabelVector> initializeUserLabels(LabelVector[] labels, Partitioner partitioner) {
+        List<Tuple2<Integer, LabelVector>> initialLabels = new ArrayList<>();
         
-        for (String user : users) {
-            Map<String, Double> labelMap = new HashMap<>();
-            labelMap.put(user, 1.0);
-            initialLabels.add(new Tuple2<>(user, labelMap));
+        for (int v = 0; v < labels.length; v++) {
+            if (labels[v] != null) {
+                initialLabels.add(new Tuple2<>(v, labels[v]));
+            }
         }
         
-        return sc.parallelizePairs(initialLabels);
+        return sc.parallelizePairs(initialLabels)
+                .partitionBy(partitioner)
+                .persist(config.getStorageLevel());
     }
     
     /**
      * Run adsorption algorithm iterations
+     * The edges of hot vertices are propagated from their slices (see HotVertices), the rest
+     * straight from the adjacency.
      */
-    private JavaPairRDD<String, Map<String, Double>> runAdsorption(
-            JavaPairRDD<String, Map<String, Double>> labelWeights,
-            JavaPairRDD<String, Map<String, Double>> edgeWeights,
-            JavaPairRDD<String, Tuple2<String, String>> allEdges) {
+    private JavaPairRDD<Integer, LabelVector> runAdsorption(
+            JavaPairRDD<Integer, LabelVector> labelWeights,
+            JavaPairRDD<Integer, Adjacency> edgeWeights,
+            HotVertices hotVertices,
+            VertexDictionary dictionary,
+            Partitioner partitioner) {
         
         boolean converged = false;
         int iteration = 0;
         
-        JavaPairRDD<String, Map<String, Double>> currentWeights = labelWeights;
+        // Hot vertices' slices are partitioned and kept like the adjacency; filtering keeps the
+        // partitioner, so the join with the remaining edges stays narrow
+        JavaPairRDD<Integer, Adjacency> coldEdges = edgeWeights;
+        JavaPairRDD<Integer, Adjacency> hotEdges = null;
+        if (!hotVertices.isEmpty()) {
+            coldEdges = edgeWeights.filter(t -> !hotVertices.contains(t._1));
+            hotEdges = edgeWeights
+                    .filter(t -> hotVertices.contains(t._1))
+                    .flatMapToPair(t -> hotVertices.split(t._1, t._2).iterator())
+                    .partitionBy(partitioner)
+                    .persist(config.getStorageLevel());
+        }
+        
+        // Users hold the vertex ids [0, userCount); closures capture the count, not the dictionary
+        int userCount = dictionary.count(VertexType.USER);
         
-        while (!converged && iteration < MAX_ITERATIONS) {
-            // Join current weights with edge weights
-            JavaPairRDD<String, Tuple2<Map<String, Double>, Map<String, Double>>> joinedWeights = 
-                    currentWeights.join(edgeWeights);
+        // Label truncation settings and counters for what it removes
+        int topK = config.getTopK();
+        double epsilon = config.getEpsilon();
+        LongAccumulator prunedLabels = sc.sc().longAccumulator("prunedLabels");
+        DoubleAccumulator prunedMass = sc.sc().doubleAccumulator("prunedMass");
+        
+        // Per-iteration residuals, filled in as a side effect of computing the new labels
+        int maxIterations = config.getMaxIterations();
+        double convergenceThreshold = config.getConvergenceThreshold();
+        MaxAccumulator maxDelta = new MaxAccumulator();
+        sc.sc().register(maxDelta, "maxDelta");
+        DoubleAccumulator l1Delta = sc.sc().doubleAccumulator("l1Delta");
+        
+        // Label vector sizes after each iteration, for the run metrics
+        LongAccumulator labelEntries = sc.sc().longAccumulator("labelEntries");
+        MaxAccumulator maxLabels = new MaxAccumulator();
+        sc.sc().register(maxLabels, "maxLabels");
+        
+        JavaPairRDD<Integer, LabelVector> currentWeights = labelWeights;
+        
+        while (!converged && iteration < maxIterations) {
+            RunMetrics.Stage stage = metrics.startIteration(iteration + 1);
             
-            // Propagate labels through edges
-            JavaPairRDD<String, Map<String, Double>> propagatedLabels = joinedWeights.flatMapToPair(t -> {
-                String source = t._1;
-                Map<String, Double> sourceLabels = t._2._1;
-                Map<String, Double> outgoingEdges = t._2._2;
+            // Join current weights with edge weights; a hot vertex's labels are copied to each of
+            // its slices first, which only ships those few vectors
+            JavaPairRDD<Integer, Tuple2<LabelVector, Adjacency>> joinedWeights = 
+                    currentWeights.join(coldEdges);
+            if (hotEdges != null) {
+                joinedWeights = joinedWeights.union(currentWeights
+                        .filter(t -> hotVertices.contains(t._1))
+                        .flatMapToPair(t -> hotVertices.replicate(t._1, t._2).iterator())
+                        .join(hotEdges, partitioner));
+            }
+            
+            // Propagate labels through edges: every edge carries a reference to the source's
+            // vector plus the edge weight, the scaling happens when it is folded in below
+            JavaPairRDD<Integer, Tuple2<Double, LabelVector>> propagatedLabels = joinedWeights.flatMapToPair(t -> {
+                LabelVector sourceLabels = t._2._1;
+                Adjacency outgoingEdges = t._2._2;
                 
-                List<Tuple2<String, Map<String, Double>>> result = new ArrayList<>();
+                List<Tuple2<Integer, Tuple2<Double, LabelVector>>> result = new ArrayList<>(outgoingEdges.size());
                 
-                for (Map.Entry<String, Double> edge : outgoingEdges.entrySet()) {
-                    String target = edge.getKey();
-                    double weight = edge.getValue();
-                    
-                    Map<String, Double> targetLabels = new HashMap<>();
-                    for (Map.Entry<String, Double> label : sourceLabels.entrySet()) {
-                        targetLabels.put(label.getKey(), label.getValue() * weight);
-                    }
-                    
-                    result.add(new Tuple2<>(target, targetLabels));
+                for (int i = 0; i < outgoingEdges.size(); i++) {
+                    result.add(new Tuple2<>(outgoingEdges.targetAt(i),
+                            new Tuple2<>(outgoingEdges.weightAt(i), sourceLabels)));
                 }
                 
                 return result.iterator();
             });
             
-            // Combine propagated labels
-            JavaPairRDD<String, Map<String, Double>> combinedWeights = propagatedLabels
-                    .reduceByKey((map1, map2) -> {
-                        Map<String, Double> combined = new HashMap<>(map1);
+            // Combine propagated labels, accumulating in place into one vector per target.
+            // This is the only shuffle per iteration: the result lands on the shared partitioner,
+            // so the join with currentWeights here and edgeWeights next iteration are narrow
+            JavaPairRDD<Integer, LabelVector> combinedWeights = propagatedLabels
+                    .aggregateByKey(new LabelVector(), partitioner,
+                            (combined, message) -> combined.addScaled(message._2, message._1),
+                            LabelVector::add);
+            
+            // Truncate each vertex to its strongest labels, then add original user labels
+            // (each user keeps its own label with value 1.0). The previous labels of the vertex
+            // come along through a narrow join, so the change since the last iteration is
+            // measured here and no separate convergence job is needed
+            JavaPairRDD<Integer, LabelVector> withOriginalLabels = combinedWeights
+                    .leftOuterJoin(currentWeights)
+                    .mapPartitionsToPair(partition -> stream(partition).map(t -> {
+                        Integer node = t._1;
+                        LabelVector newLabelWeights = t._2._1;
+                        LabelVector oldLabelWeights = t._2._2.orElse(EMPTY_LABELS);
                         
-                        for (Map.Entry<String, Double> entry : map2.entrySet()) {
-                            combined.merge(entry.getKey(), entry.getValue(), Double::sum);
+                        int sizeBefore = newLabelWeights.size();
+                        double pruned = newLabelWeights.prune(topK, epsilon);
+                        if (sizeBefore > newLabelWeights.size()) {
+                            prunedLabels.add(sizeBefore - newLabelWeights.size());
+                            prunedMass.add(pruned);
                         }
                         
-                        return combined;
-                    });
-            
-            // Add original user labels (each user keeps its own label with value 1.0)
-            JavaPairRDD<String, Map<String, Double>> withOriginalLabels = combinedWeights
-                    .leftOuterJoin(labelWeights)
-                    .mapToPair(t -> {
-                        String node = t._1;
-                        Map<String, Double> newLabelWeights = t._2._1;
-                        Map<String, Double> originalLabels = t._2._2.orElse(new HashMap<>());
-                        
                         // If this is a user node, restore its original label
-                        if (node.startsWith("user:") && originalLabels.containsKey(node)) {
-                            newLabelWeights.put(node, 1.0);
+                        if (node < userCount) {
+                            newLabelWeights.set(node, 1.0);
                         }
                         
+                        maxDelta.add(LabelVector.maxAbsDiff(newLabelWeights, oldLabelWeights));
+                        l1Delta.add(LabelVector.l1Diff(newLabelWeights, oldLabelWeights));
+                        labelEntries.add(newLabelWeights.size());
+                        maxLabels.add(newLabelWeights.size());
+                        
                         return new Tuple2<>(node, newLabelWeights);
-                    });
+                    }).iterator(), true);
             
-            // Check for convergence by finding maximum change in any label weight
-            if (iteration > 0) {
-                JavaRDD<Double> changeValues = withOriginalLabels
-                        .join(currentWeights)
-                        .mapValues(pair -> {
-                            Map<String, Double> newWeights = pair._1;
-                            Map<String, Double> oldWeights = pair._2;
-                            double maxDiff = 0.0;
-                            
-                            // Find all keys (labels) in either map
-                            Set<String> allKeys = new HashSet<>();
-                            allKeys.addAll(newWeights.keySet());
-                            allKeys.addAll(oldWeights.keySet());
-                            
-                            // Find maximum difference for any label
-                            for (String key : allKeys) {
-                                double newVal = newWeights.getOrDefault(key, 0.0);
-                                double oldVal = oldWeights.getOrDefault(key, 0.0);
-                                maxDiff = Math.max(maxDiff, Math.abs(newVal - oldVal));
-                            }
-                            
-                            return maxDiff;
-                        })
-                        .values();
-                
-                // Check if we have any values before calling reduce
-                if (!changeValues.isEmpty()) {
-                    double maxChange = changeValues.reduce(Math::max);
-                    
-                    if (maxChange < CONVERGENCE_THRESHOLD) {
-                        converged = true;
-                        System.out.println("Converged after " + iteration + " iterations");
-                    }
+            // Keep this iteration's labels so the next iteration doesn't recompute the whole
+            // lineage (which would also count pruning and deltas twice)
+            withOriginalLabels.persist(config.getStorageLevel());
+            
+            // Periodically cut the lineage so it doesn't grow with every iteration
+            int checkpointInterval = config.getCheckpointInterval();
+            if (checkpointInterval > 0 && (iteration + 1) % checkpointInterval == 0) {
+                if (config.getCheckpointDir() != null) {
+                    withOriginalLabels.checkpoint();
                 } else {
-                    // If there are no values, we can consider it converged
-                    converged = true;
-                    System.out.println("No changes detected, considering converged after " + iteration + " iterations");
+                    withOriginalLabels.rdd().localCheckpoint();
                 }
             }
             
+            // The single job of this iteration: materialize the labels, filling the accumulators
+            maxDelta.reset();
+            l1Delta.reset();
+            labelEntries.reset();
+            maxLabels.reset();
+            long prunedLabelsBefore = prunedLabels.value();
+            double prunedMassBefore = prunedMass.value();
+            long labeledVertices = withOriginalLabels.count();
+            
+            if (currentWeights != labelWeights) {
+                currentWeights.unpersist(false);
+            }
             currentWeights = withOriginalLabels;
             iteration++;
-            System.out.println("Completed iteration " + iteration);
+            stage.records(labeledVertices)
+                    .labels(labelEntries.value(), maxLabels.value().longValue())
+                    .pruned(prunedLabels.value() - prunedLabelsBefore, prunedMass.value() - prunedMassBefore)
+                    .change(maxDelta.value(), l1Delta.value())
+                    .finish();
+            log("Completed iteration " + iteration + ": " + labeledVertices + " labeled vertices, max change "
+                    + maxDelta.value() + ", total change " + l1Delta.value());
+            
+            // Check for convergence by the maximum change in any label weight
+            if (labeledVertices == 0) {
+                converged = true;
+                log("No labeled vertices, considering converged after " + iteration + " iterations");
+            } else if (maxDelta.value() < convergenceThreshold) {
+                converged = true;
+                log("Converged after " + iteration + " iterations");
+            }
+        }
+        
+        log("Pruned " + prunedLabels.value() + " labels carrying " + prunedMass.value()
+                + " total weight over " + iteration + " iterations");
+        if (hotEdges != null) {
+            hotEdges.unpersist(false);
         }
         
         return currentWeights;
     }
     
+    /**
+     * Sequential stream over a partition iterator, for key-preserving per-record transforms
+     * inside mapPartitionsToPair
+     */
+    private static <T> Stream<T> stream(Iterator<T> partition) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(partition, Spliterator.ORDERED), false);
+    }
+    
     /**
      * Save the ranking results to the database
+     * Only the rows whose score changed since the last run are written (see RecommendationWriter),
+     * or with differentialWrite off, rows go to a staging table that replaces recommendedPosts in
+     * one atomic rename, so the feed keeps serving the previous recommendations until the new
+     * ones are complete.
+     *
+     * @return number of rows inserted, updated or deleted
      */
-    private void saveResults(List<Tuple2<String, Map<String, Double>>> postWeights) throws SQLException {
-        Connection conn = null;
+    private long saveResults(List<Tuple2<Integer, TopPosts>> recommendations,
+                             VertexDictionary dictionary) throws SQLException {
+        RecommendationWriter writer = new RecommendationWriter(dbUrl, dbUser, dbPassword, config);
         try {
-            conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
-            
-            // First, check if the table exists and create it if it doesn't
-            try {
-                PreparedStatement checkTableStmt = conn.prepareStatement(
-                    "SELECT 1 FROM information_schema.tables WHERE table_name = 'recommendedPosts' LIMIT 1");
-                ResultSet tableRs = checkTableStmt.executeQuery();
-                
-                if (!tableRs.next()) {
-                    // Table doesn't exist, create it
-                    log("Creating recommendedPosts table...");
-                    PreparedStatement createTableStmt = conn.prepareStatement(
-                        "CREATE TABLE IF NOT EXISTS recommendedPosts (" +
-                        "user_id INT NOT NULL, " +
-                        "post_id INT NOT NULL, " +
-                        "score INT, " +
-                        "PRIMARY KEY (user_id, post_id), " +
-                        "FOREIGN KEY (user_id) REFERENCES users(user_id), " +
-                        "FOREIGN KEY (post_id) REFERENCES posts(post_id)" +
-                        ")");
-                    createTableStmt.executeUpdate();
-                } else {
-                    // Table exists, clear it
-                    PreparedStatement clearStmt = conn.prepareStatement(
-                        "TRUNCATE TABLE recommendedPosts"
-                    );
-                    clearStmt.executeUpdate();
-                }
-            } catch (SQLException e) {
-                log("Error checking/creating recommendedPosts table: " + e.getMessage());
-                // Continue anyway, we'll try to create it below
-            }
-            
-            // Get all users and posts from the database
-            List<Integer> userIds = new ArrayList<>();
-            List<Integer> postIds = new ArrayList<>();
+            writer.prepare();
             
-            // Get all users
-            PreparedStatement userStmt = conn.prepareStatement("SELECT user_id FROM users");
-            ResultSet userRs = userStmt.executeQuery();
-            while (userRs.next()) {
-                userIds.add(userRs.getInt("user_id"));
+            long written;
+            try (Connection conn = writer.connect()) {
+                // Only each user's top posts are written; the feed reads nothing beyond them
+                written = writer.write(conn, recommendations.iterator(), dictionary);
             }
             
-            // Get all posts
-            PreparedStatement postStmt = conn.prepareStatement("SELECT post_id FROM posts");
-            ResultSet postRs = postStmt.executeQuery();
-            while (postRs.next()) {
-                postIds.add(postRs.getInt("post_id"));
-            }
-            
-            log("Found " + userIds.size() + " users and " + postIds.size() + " posts for recommendations");
-            
-            // Create a map of post weights for easier lookup
-            Map<String, Map<String, Double>> postWeightsMap = new HashMap<>();
-            for (Tuple2<String, Map<String, Double>> postWithWeights : postWeights) {
-                postWeightsMap.put(postWithWeights._1, postWithWeights._2);
-            }
-            
-            // Prepare the insert statement
-            PreparedStatement insertStmt = conn.prepareStatement(
-                "INSERT INTO recommendedPosts (user_id, post_id, score) VALUES (?, ?, ?)"
-            );
-            
-            int batchCount = 0;
-            int totalInserted = 0;
+            long deleted = writer.publish();
+            logSaved(writer, written, deleted, recommendations.size() + " users");
+            log("AdsorptionRankJob completed");
+            return written + deleted;
             
-            // For each user and post combination, ensure we have a recommendation
-            for (Integer userId : userIds) {
-                String userLabel = "user:" + userId;
-                
-                for (Integer postId : postIds) {
-                    String postLabel = "post:" + postId;
-                    
-                    // Default score (minimum recommendation)
-                    int score = 1;
-                    
-                    // Check if we have a calculated weight for this user-post pair
-                    if (postWeightsMap.containsKey(postLabel)) {
-                        Map<String, Double> weights = postWeightsMap.get(postLabel);
-                        if (weights.containsKey(userLabel)) {
-                            Double weight = weights.get(userLabel);
-                            // Convert weight to score (0-100)
-                            score = Math.max(1, (int)(weight * 100));
-                        }
-                    }
-                    
-                    // Insert the recommendation
-                    insertStmt.setInt(1, userId);
-                    insertStmt.setInt(2, postId);
-                    insertStmt.setInt(3, score);
-                    insertStmt.addBatch();
-                    
-                    batchCount++;
-                    
-                    // Execute in batches of 1000
-                    if (batchCount >= 1000) {
-                        int[] results = insertStmt.executeBatch();
-                        totalInserted += results.length;
-                        batchCount = 0;
-                    }
-                }
-            }
+        } catch (SQLException e) {
+            System.err.println("Error saving recommendations: " + e.getMessage());
+            throw e;
+        }
+    }
+    
+    /**
+     * Save the ranking results to the database from the executors, the same way
+     * Every partition is selected and written by its own task, at the width of the aggregation
+     * that produced it; each executor writes on at most writeConnections connections at once.
+     *
+     * @return number of rows inserted, updated or deleted
+     */
+    private long saveResults(JavaPairRDD<Integer, TopPosts> recommendations,
+                             VertexDictionary dictionary) throws SQLException {
+        RecommendationWriter writer = new RecommendationWriter(dbUrl, dbUser, dbPassword, config);
+        try {
+            writer.prepare();
             
-            // Execute any remaining batch
-            if (batchCount > 0) {
-                int[] results = insertStmt.executeBatch();
-                totalInserted += results.length;
-            }
+            Broadcast<VertexDictionary> dictionaryBroadcast = sc.broadcast(dictionary);
+            LongAccumulator written = sc.sc().longAccumulator("writtenRecommendations");
+            recommendations.foreachPartition(partition ->
+                    written.add(writer.write(partition, dictionaryBroadcast.value())));
             
-            log("Successfully saved " + totalInserted + " post recommendations to database");
+            long deleted = writer.publish();
+            logSaved(writer, written.value(), deleted, recommendations.getNumPartitions() + " partitions");
             log("AdsorptionRankJob completed");
+            return written.value() + deleted;
             
         } catch (SQLException e) {
             System.err.println("Error saving recommendations: " + e.getMessage());
             throw e;
-        } finally {
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                    log("Error closing connection: " + e.getMessage());
-                }
-            }
+        }
+    }
+    
+    private static void logSaved(RecommendationWriter writer, long written, long deleted, String from) {
+        if (writer.isDifferential()) {
+            log("Changed " + (written + deleted) + " rows of " + RecommendationWriter.TABLE + " from " + from
+                    + ": " + written + " inserted, rescored or dropped posts, " + deleted
+                    + " rows of users without recommendations");
+        } else {
+            log("Successfully saved " + written + " post recommendations to database from " + from);
         }
     }
     
@@ -0,0 +1,76 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Converged labels of a finished run, kept between runs to warm-start the next one
+ *
+ * Labels are indexed by the vertex ids of the dictionary. The CSR engine also keeps
+ * its graph, weighted out-edges and a watermark, the newest posts.created_at (epoch
+ * millis) the graph covers, for incremental updates and offline reruns. Only the CSR
+ * engine keeps a state: the Spark engines' labels never reach the driver. States are
+ * stored as a Snapshot.
+ */
+public class AdsorptionState {
+    public final GraphData graph;
+    public final CsrGraph outEdges;
+    public final VertexDictionary dictionary;
+    public final LabelVector[] labels;
+    public final long watermark;
+
+    public AdsorptionState(GraphData graph, CsrGraph outEdges, VertexDictionary dictionary, LabelVector[] labels,
+                           long watermark) {
+        this.graph = graph;
+        this.outEdges = outEdges;
+        this.dictionary = dictionary;
+        this.labels = labels;
+        this.watermark = watermark;
+    }
+
+    public void save(Path path) throws IOException {
+        Snapshot.write(path, this);
+    }
+
+    /**
+     * Read a state saved by save, or return null if there is none at path
+     */
+    public static AdsorptionState load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (Snapshot snapshot = Snapshot.open(path)) {
+            VertexDictionary dictionary = snapshot.dictionary();
+            LabelVector[] labels = snapshot.labels();
+            if (labels.length != dictionary.size()) {
+                throw new IOException("Snapshot has " + labels.length + " label vectors for "
+                        + dictionary.size() + " vertices: " + path);
+            }
+            GraphData graph = snapshot.hasGraph() ? snapshot.graph() : null;
+            CsrGraph outEdges = snapshot.has(Snapshot.Section.ROW_START) ? snapshot.csr() : null;
+            return new AdsorptionState(graph, outEdges, dictionary, labels, snapshot.watermark());
+        }
+    }
+
+    /**
+     * Initial labels for a run over another dictionary
+     * Vertices that still exist keep their labels, minus labels of users that are gone;
+     * new users start from their own label alone and new posts without labels.
+     */
+    public LabelVector[] labelsFor(VertexDictionary target) {
+        int[] mapping = dictionary.mapTo(target);
+        LabelVector[] result = new LabelVector[target.size()];
+        for (int v = 0; v < labels.length; v++) {
+            if (mapping[v] >= 0 && labels[v] != null) {
+                result[mapping[v]] = labels[v].remap(mapping);
+            }
+        }
+        for (int user = 0; user < target.count(VertexType.USER); user++) {
+            if (result[user] == null || result[user].isEmpty()) {
+                result[user] = LabelVector.of(user, 1.0);
+            }
+        }
+        return result;
+    }
+}
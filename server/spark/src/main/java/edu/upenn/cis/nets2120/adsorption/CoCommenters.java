@@ -0,0 +1,185 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import scala.Tuple2;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The first distinct commenters of one thread (the replies to a post), capped at a fixed number
+ *
+ * Two users who replied to the same post get a user-user edge each way. Every thread
+ * adds one edge per pair of its commenters, so a pair that shares several threads gets
+ * that many parallel edges, and the per-source normalization (Adjacency.fromPackedEdges)
+ * turns them into a weight proportional to the co-occurrence count. Only the first
+ * maxCoCommenters distinct commenters of a thread, by reply id, take part: a viral thread
+ * adds at most max x (max - 1) edges instead of its commenter count squared. Replies can be
+ * offered in any order and partial sets merged, which is how Spark aggregates them; the
+ * result is the same as offering them in reply order, which is what a new reply does to
+ * an existing thread in IncrementalAdsorption.
+ */
+public class CoCommenters implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    // Kept commenters, and the id of the first reply each of them wrote to the thread
+    private int[] users;
+    private int[] firstReplies;
+    private int size;
+
+    /**
+     * @param capacity most commenters kept (0 keeps all of them)
+     */
+    public CoCommenters(int capacity) {
+        this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+        int initial = Math.min(this.capacity, 4);
+        this.users = new int[initial];
+        this.firstReplies = new int[initial];
+    }
+
+    /**
+     * Record that user wrote reply; once full, a later first reply displaces nobody
+     */
+    public CoCommenters offer(int reply, int user) {
+        int latest = -1;
+        for (int i = 0; i < size; i++) {
+            if (users[i] == user) {
+                firstReplies[i] = Math.min(firstReplies[i], reply);
+                return this;
+            }
+            if (latest < 0 || firstReplies[i] > firstReplies[latest]) {
+                latest = i;
+            }
+        }
+        if (size < capacity) {
+            if (size == users.length) {
+                int grown = (int) Math.min(capacity, size * 2L);
+                users = Arrays.copyOf(users, grown);
+                firstReplies = Arrays.copyOf(firstReplies, grown);
+            }
+            users[size] = user;
+            firstReplies[size] = reply;
+            size++;
+        } else if (reply < firstReplies[latest]) {
+            users[latest] = user;
+            firstReplies[latest] = reply;
+        }
+        return this;
+    }
+
+    public CoCommenters merge(CoCommenters other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.firstReplies[i], other.users[i]);
+        }
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public boolean contains(int user) {
+        for (int i = 0; i < size; i++) {
+            if (users[i] == user) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add (a, b) and (b, a) for every pair of kept commenters
+     */
+    public void addEdges(EdgeList edges) {
+        for (int i = 0; i < size; i++) {
+            for (int j = i + 1; j < size; j++) {
+                edges.add(users[i], users[j]);
+                edges.add(users[j], users[i]);
+            }
+        }
+    }
+
+    /**
+     * Same edges as addEdges, as pairs for an RDD
+     */
+    public List<Tuple2<Integer, Integer>> edges() {
+        List<Tuple2<Integer, Integer>> edges = new ArrayList<>(size * (size - 1));
+        for (int i = 0; i < size; i++) {
+            for (int j = i + 1; j < size; j++) {
+                edges.add(new Tuple2<>(users[i], users[j]));
+                edges.add(new Tuple2<>(users[j], users[i]));
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Co-commenter edges of (author, thread) reply edges listed in reply order
+     */
+    public static EdgeList edges(EdgeList replies, int capacity) {
+        Map<Integer, CoCommenters> threads = threads(replies, null, capacity);
+        EdgeList edges = new EdgeList();
+        for (CoCommenters thread : threads.values()) {
+            thread.addEdges(edges);
+        }
+        return edges;
+    }
+
+    /**
+     * Co-commenter edges that newReplies add to a graph whose edges were built from previousReplies
+     * Both are in reply order, and every new reply comes after the previous ones. A new commenter
+     * of a thread gets an edge each way with every commenter kept so far, unless the thread is full.
+     */
+    public static EdgeList newEdges(EdgeList previousReplies, EdgeList newReplies, int capacity) {
+        EdgeList edges = new EdgeList();
+        if (newReplies.isEmpty()) {
+            return edges;
+        }
+        Map<Integer, CoCommenters> threads = threads(previousReplies, newReplies, capacity);
+        int reply = previousReplies.size();
+        for (int i = 0; i < newReplies.size(); i++, reply++) {
+            CoCommenters thread = threads.get(newReplies.target(i));
+            int author = newReplies.source(i);
+            if (thread.contains(author) || thread.isFull()) {
+                continue;
+            }
+            for (int j = 0; j < thread.size; j++) {
+                edges.add(author, thread.users[j]);
+                edges.add(thread.users[j], author);
+            }
+            thread.offer(reply, author);
+        }
+        return edges;
+    }
+
+    /**
+     * Commenters of every thread in replies, or only of the threads that onlyFor replies to
+     * A reply's id is its index, so the list order is the reply order.
+     */
+    private static Map<Integer, CoCommenters> threads(EdgeList replies, EdgeList onlyFor, int capacity) {
+        Map<Integer, CoCommenters> threads = new HashMap<>();
+        if (onlyFor != null) {
+            for (int i = 0; i < onlyFor.size(); i++) {
+                threads.computeIfAbsent(onlyFor.target(i), thread -> new CoCommenters(capacity));
+            }
+        }
+        for (int i = 0; i < replies.size(); i++) {
+            CoCommenters thread = onlyFor == null
+                    ? threads.computeIfAbsent(replies.target(i), t -> new CoCommenters(capacity))
+                    : threads.get(replies.target(i));
+            if (thread != null) {
+                thread.offer(i, replies.source(i));
+            }
+        }
+        return threads;
+    }
+}
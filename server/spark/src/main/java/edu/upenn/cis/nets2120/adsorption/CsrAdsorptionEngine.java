@@ -0,0 +1,339 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Single-JVM adsorption engine over an in-memory CSR graph
+ *
+ * Runs the same iterations as the Spark path in AdsorptionRankJob (propagate,
+ * prune, restore seed labels, measure change) but as a pull over the in-edge
+ * CSR: every vertex sums its in-neighbours' previous labels, so vertex ranges
+ * can be computed on a fork/join pool without any locking. Meant for graphs that
+ * fit in one JVM, where Spark startup and shuffles dominate the run time.
+ */
+public class CsrAdsorptionEngine {
+    // Don't split vertex ranges smaller than this into separate tasks
+    private static final int MIN_TASK_VERTICES = 256;
+
+    private final AdsorptionConfig config;
+
+    // Where the metrics of every iteration are recorded
+    private final RunMetrics metrics;
+
+    public CsrAdsorptionEngine(AdsorptionConfig config) {
+        this(config, new RunMetrics());
+    }
+
+    public CsrAdsorptionEngine(AdsorptionConfig config, RunMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Run adsorption on the graph and return the final labels of every labeled post vertex
+     */
+    public List<Tuple2<Integer, LabelVector>> run(GraphData graph, VertexDictionary dictionary) {
+        CsrGraph outEdges = CsrGraph.fromGraphData(graph, dictionary);
+        return postLabels(propagate(outEdges, dictionary, initializeUserLabels(dictionary)), dictionary);
+    }
+
+    /**
+     * Run adsorption over the weighted out-edges from the given initial labels, indexed by
+     * vertex id, and return the final labels of every vertex (null if it has none)
+     */
+    public LabelVector[] propagate(CsrGraph outEdges, VertexDictionary dictionary, LabelVector[] initialLabels) {
+        CsrGraph inEdges = outEdges.transpose();
+        AdsorptionRankJob.log("Built CSR graph with " + inEdges.numVertices() + " vertices and "
+                + inEdges.numEdges() + " weighted edges");
+
+        return runAdsorption(inEdges, initialLabels, dictionary);
+    }
+
+    /**
+     * Labels of every labeled post vertex, keyed by vertex id
+     */
+    public static List<Tuple2<Integer, LabelVector>> postLabels(LabelVector[] labels, VertexDictionary dictionary) {
+        List<Tuple2<Integer, LabelVector>> postWeights = new ArrayList<>();
+        int firstPost = dictionary.offset(VertexType.POST);
+        for (int v = firstPost; v < firstPost + dictionary.count(VertexType.POST); v++) {
+            if (labels[v] != null) {
+                postWeights.add(new Tuple2<>(v, labels[v]));
+            }
+        }
+        return postWeights;
+    }
+
+    /**
+     * Each user gets its own label with value 1.0; a null entry is a vertex without labels
+     */
+    public static LabelVector[] initializeUserLabels(VertexDictionary dictionary) {
+        LabelVector[] labels = new LabelVector[dictionary.size()];
+        for (int user = 0; user < dictionary.count(VertexType.USER); user++) {
+            labels[user] = LabelVector.of(user, 1.0);
+        }
+        return labels;
+    }
+
+    /**
+     * Run adsorption iterations until the labels converge or the iteration limit is hit
+     */
+    LabelVector[] runAdsorption(CsrGraph inEdges, LabelVector[] initialLabels, VertexDictionary dictionary) {
+        int threads = config.getThreads() > 0 ? config.getThreads() : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        int n = inEdges.numVertices();
+        int grain = grain(threads, n);
+
+        long prunedLabels = 0;
+        double prunedMass = 0.0;
+        boolean converged = false;
+        int iteration = 0;
+        LabelVector[] current = initialLabels;
+
+        try {
+            while (!converged && iteration < config.getMaxIterations()) {
+                RunMetrics.Stage stage = metrics.startIteration(iteration + 1);
+                LabelVector[] next = new LabelVector[n];
+                IterationStats stats = pool.invoke(
+                        new PropagateTask(inEdges, dictionary, current, next, null, null, 0, n, grain));
+
+                prunedLabels += stats.prunedLabels;
+                prunedMass += stats.prunedMass;
+                current = next;
+                iteration++;
+                stage.records(stats.labeledVertices)
+                        .labels(stats.labelEntries, stats.maxLabels)
+                        .pruned(stats.prunedLabels, stats.prunedMass)
+                        .change(stats.maxDelta, stats.l1Delta)
+                        .finish();
+                AdsorptionRankJob.log("Completed iteration " + iteration + ": " + stats.labeledVertices
+                        + " labeled vertices, max change " + stats.maxDelta + ", total change " + stats.l1Delta);
+
+                if (stats.labeledVertices == 0) {
+                    converged = true;
+                    AdsorptionRankJob.log("No labeled vertices, considering converged after " + iteration + " iterations");
+                } else if (stats.maxDelta < config.getConvergenceThreshold()) {
+                    converged = true;
+                    AdsorptionRankJob.log("Converged after " + iteration + " iterations");
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        AdsorptionRankJob.log("Pruned " + prunedLabels + " labels carrying " + prunedMass
+                + " total weight over " + iteration + " iterations");
+        return current;
+    }
+
+    /**
+     * A single full iteration on the given pool, without convergence checks or logging
+     * Used by the benchmarks to time propagation on its own.
+     */
+    LabelVector[] iterate(ForkJoinPool pool, CsrGraph inEdges, LabelVector[] current, VertexDictionary dictionary) {
+        int n = inEdges.numVertices();
+        LabelVector[] next = new LabelVector[n];
+        pool.invoke(new PropagateTask(inEdges, dictionary, current, next, null, null, 0, n,
+                grain(pool.getParallelism(), n)));
+        return next;
+    }
+
+    // Vertices per leaf task: about 8 tasks per thread, so idle threads can steal work
+    private static int grain(int threads, int vertices) {
+        return Math.max(MIN_TASK_VERTICES, vertices / (threads * 8));
+    }
+
+    /**
+     * Re-run adsorption from already converged labels, recomputing only a frontier of vertices
+     *
+     * Every iteration recomputes the frontier vertices from the current labels; a vertex
+     * whose labels moved by at least the convergence threshold puts its out-neighbours
+     * on the next frontier, while smaller changes stay as residual and are not pushed
+     * further. Stops when the frontier empties or the iteration limit is hit.
+     */
+    LabelVector[] runFrontier(CsrGraph outEdges, CsrGraph inEdges, LabelVector[] labels, int[] frontier,
+                              VertexDictionary dictionary) {
+        int threads = config.getThreads() > 0 ? config.getThreads() : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        int n = inEdges.numVertices();
+
+        long recomputed = 0;
+        int iteration = 0;
+        LabelVector[] current = labels;
+
+        try {
+            while (frontier.length > 0 && iteration < config.getMaxIterations()) {
+                RunMetrics.Stage stage = metrics.startIteration(iteration + 1);
+                LabelVector[] next = current.clone();
+                boolean[] changed = new boolean[n];
+                int grain = grain(threads, frontier.length);
+                IterationStats stats = pool.invoke(new PropagateTask(
+                        inEdges, dictionary, current, next, frontier, changed, 0, frontier.length, grain));
+
+                recomputed += frontier.length;
+                current = next;
+                iteration++;
+                stage.records(frontier.length)
+                        .labels(stats.labelEntries, stats.maxLabels)
+                        .pruned(stats.prunedLabels, stats.prunedMass)
+                        .change(stats.maxDelta, stats.l1Delta)
+                        .finish();
+                AdsorptionRankJob.log("Completed incremental iteration " + iteration + ": " + frontier.length
+                        + " vertices recomputed, max change " + stats.maxDelta + ", total change " + stats.l1Delta);
+
+                frontier = outNeighbours(outEdges, frontier, changed);
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        if (frontier.length == 0) {
+            AdsorptionRankJob.log("Residual below threshold after " + iteration + " incremental iterations");
+        }
+        AdsorptionRankJob.log("Recomputed " + recomputed + " vertices over " + iteration + " incremental iterations");
+        return current;
+    }
+
+    /**
+     * Distinct out-neighbours of the frontier vertices marked as changed
+     */
+    private static int[] outNeighbours(CsrGraph outEdges, int[] frontier, boolean[] changed) {
+        boolean[] seen = new boolean[outEdges.numVertices()];
+        GraphLoader.IntArrayBuilder result = new GraphLoader.IntArrayBuilder();
+        for (int v : frontier) {
+            if (!changed[v]) {
+                continue;
+            }
+            for (int e = outEdges.rowStart(v); e < outEdges.rowEnd(v); e++) {
+                int target = outEdges.column(e);
+                if (!seen[target]) {
+                    seen[target] = true;
+                    result.add(target);
+                }
+            }
+        }
+        return result.toArray();
+    }
+
+    /**
+     * Totals of one iteration over a range of vertices
+     */
+    private static class IterationStats {
+        long labeledVertices;
+        long labelEntries;
+        int maxLabels;
+        double maxDelta;
+        double l1Delta;
+        long prunedLabels;
+        double prunedMass;
+
+        IterationStats merge(IterationStats other) {
+            labeledVertices += other.labeledVertices;
+            labelEntries += other.labelEntries;
+            maxLabels = Math.max(maxLabels, other.maxLabels);
+            maxDelta = Math.max(maxDelta, other.maxDelta);
+            l1Delta += other.l1Delta;
+            prunedLabels += other.prunedLabels;
+            prunedMass += other.prunedMass;
+            return this;
+        }
+    }
+
+    /**
+     * Computes next[v] for every v in [from, to), splitting the range until it is small enough
+     * With a vertex list, the range is over positions in that list instead, and vertices whose
+     * labels moved by at least the convergence threshold are flagged in changed.
+     */
+    private class PropagateTask extends RecursiveTask<IterationStats> {
+        private static final long serialVersionUID = 1L;
+
+        private final CsrGraph inEdges;
+        private final VertexDictionary dictionary;
+        private final LabelVector[] current;
+        private final LabelVector[] next;
+        private final int[] vertices;
+        private final boolean[] changed;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        PropagateTask(CsrGraph inEdges, VertexDictionary dictionary, LabelVector[] current, LabelVector[] next,
+                      int[] vertices, boolean[] changed, int from, int to, int grain) {
+            this.inEdges = inEdges;
+            this.dictionary = dictionary;
+            this.current = current;
+            this.next = next;
+            this.vertices = vertices;
+            this.changed = changed;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected IterationStats compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                PropagateTask left = new PropagateTask(
+                        inEdges, dictionary, current, next, vertices, changed, from, mid, grain);
+                PropagateTask right = new PropagateTask(
+                        inEdges, dictionary, current, next, vertices, changed, mid, to, grain);
+                left.fork();
+                IterationStats rightStats = right.compute();
+                return left.join().merge(rightStats);
+            }
+
+            IterationStats stats = new IterationStats();
+            for (int i = from; i < to; i++) {
+                int v = vertices != null ? vertices[i] : i;
+                // Pull labels from every in-neighbour that had labels last iteration
+                LabelVector labels = null;
+                for (int e = inEdges.rowStart(v); e < inEdges.rowEnd(v); e++) {
+                    LabelVector sourceLabels = current[inEdges.column(e)];
+                    if (sourceLabels != null) {
+                        if (labels == null) {
+                            labels = new LabelVector();
+                        }
+                        labels.addScaled(sourceLabels, inEdges.value(e));
+                    }
+                }
+                if (labels == null) {
+                    if (changed != null && current[v] != null) {
+                        changed[v] = true;
+                    }
+                    next[v] = null;
+                    continue;
+                }
+
+                int sizeBefore = labels.size();
+                double pruned = labels.prune(config.getTopK(), config.getEpsilon());
+                if (sizeBefore > labels.size()) {
+                    stats.prunedLabels += sizeBefore - labels.size();
+                    stats.prunedMass += pruned;
+                }
+
+                // If this is a user node, restore its original label
+                if (dictionary.isUser(v)) {
+                    labels.set(v, 1.0);
+                }
+
+                LabelVector previous = current[v] != null ? current[v] : new LabelVector();
+                double delta = LabelVector.maxAbsDiff(labels, previous);
+                if (changed != null && delta >= config.getConvergenceThreshold()) {
+                    changed[v] = true;
+                }
+                stats.maxDelta = Math.max(stats.maxDelta, delta);
+                stats.l1Delta += LabelVector.l1Diff(labels, previous);
+                stats.labeledVertices++;
+                stats.labelEntries += labels.size();
+                stats.maxLabels = Math.max(stats.maxLabels, labels.size());
+                next[v] = labels;
+            }
+            return stats;
+        }
+    }
+}
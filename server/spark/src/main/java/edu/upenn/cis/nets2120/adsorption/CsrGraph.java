@@ -0,0 +1,142 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import java.util.Arrays;
+
+/**
+ * Weighted graph in compressed sparse row form
+ *
+ * Row v's edges are columns[rowStart[v] .. rowStart[v + 1]) with the matching
+ * entries of values. Built as out-edges (row = source) and transposed to in-edges
+ * (row = target) so each vertex can pull its new labels without synchronization.
+ */
+public class CsrGraph {
+    private final int[] rowStart;
+    private final int[] columns;
+    private final double[] values;
+
+    public CsrGraph(int[] rowStart, int[] columns, double[] values) {
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    /**
+     * Build the weighted out-edge graph from raw database edges
+     * Edges are weighted exactly like the Spark path: see Adjacency.fromPackedEdges.
+     */
+    public static CsrGraph fromGraphData(GraphData graph, VertexDictionary dictionary) {
+        int n = dictionary.size();
+        int capacity = 2 * graph.userPostLikes.size() + 2 * graph.userPostComments.size()
+                + graph.userUserFollows.size() + 2 * graph.postHashtags.size() + 2 * graph.userHashtags.size();
+        int[] edgeSources = new int[capacity];
+        long[] edgePacked = new long[capacity];
+        int count = 0;
+
+        EdgeList[] lists = {graph.userPostLikes, graph.userPostComments, graph.userUserFollows,
+                graph.postHashtags, graph.userHashtags};
+        EdgeType[] forward = {EdgeType.USER_LIKES_POST, EdgeType.USER_COMMENTS_POST, EdgeType.USER_USER,
+                EdgeType.POST_HAS_HASHTAG, EdgeType.USER_INTERESTED_IN_HASHTAG};
+        EdgeType[] backward = {EdgeType.POST_LIKED_BY_USER, EdgeType.POST_COMMENTED_BY_USER, null,
+                EdgeType.HASHTAG_TAGS_POST, EdgeType.HASHTAG_INTERESTS_USER};
+        VertexType[] sourceTypes = {VertexType.USER, VertexType.USER, VertexType.USER,
+                VertexType.POST, VertexType.USER};
+        VertexType[] targetTypes = {VertexType.POST, VertexType.POST, VertexType.USER,
+                VertexType.HASHTAG, VertexType.HASHTAG};
+
+        for (int l = 0; l < lists.length; l++) {
+            EdgeList edges = lists[l];
+            for (int i = 0; i < edges.size(); i++) {
+                int source = dictionary.encode(sourceTypes[l], edges.source(i));
+                int target = dictionary.encode(targetTypes[l], edges.target(i));
+                if (source < 0 || target < 0) {
+                    continue;
+                }
+                edgeSources[count] = source;
+                edgePacked[count++] = forward[l].pack(target);
+                if (backward[l] != null) {
+                    edgeSources[count] = target;
+                    edgePacked[count++] = backward[l].pack(source);
+                }
+            }
+        }
+
+        // Counting sort of the packed edges by source
+        int[] bucketStart = new int[n + 1];
+        for (int i = 0; i < count; i++) {
+            bucketStart[edgeSources[i] + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            bucketStart[v + 1] += bucketStart[v];
+        }
+        long[] bySource = new long[count];
+        int[] fill = Arrays.copyOf(bucketStart, n);
+        for (int i = 0; i < count; i++) {
+            bySource[fill[edgeSources[i]]++] = edgePacked[i];
+        }
+
+        // Normalize each source's edges; merging repeated targets can only shrink a row
+        int[] rowStart = new int[n + 1];
+        int[] columns = new int[count];
+        double[] values = new double[count];
+        int nnz = 0;
+        for (int v = 0; v < n; v++) {
+            Adjacency adjacency = Adjacency.fromPackedEdges(bySource, bucketStart[v], bucketStart[v + 1]);
+            for (int i = 0; i < adjacency.size(); i++) {
+                columns[nnz] = adjacency.targetAt(i);
+                values[nnz] = adjacency.weightAt(i);
+                nnz++;
+            }
+            rowStart[v + 1] = nnz;
+        }
+        return new CsrGraph(rowStart, Arrays.copyOf(columns, nnz), Arrays.copyOf(values, nnz));
+    }
+
+    /**
+     * Same edges with every direction reversed
+     */
+    public CsrGraph transpose() {
+        int n = numVertices();
+        int[] tRowStart = new int[n + 1];
+        for (int e = 0; e < columns.length; e++) {
+            tRowStart[columns[e] + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            tRowStart[v + 1] += tRowStart[v];
+        }
+        int[] fill = Arrays.copyOf(tRowStart, n);
+        int[] tColumns = new int[columns.length];
+        double[] tValues = new double[values.length];
+        for (int v = 0; v < n; v++) {
+            for (int e = rowStart[v]; e < rowStart[v + 1]; e++) {
+                int slot = fill[columns[e]]++;
+                tColumns[slot] = v;
+                tValues[slot] = values[e];
+            }
+        }
+        return new CsrGraph(tRowStart, tColumns, tValues);
+    }
+
+    public int numVertices() {
+        return rowStart.length - 1;
+    }
+
+    public int numEdges() {
+        return columns.length;
+    }
+
+    public int rowStart(int v) {
+        return rowStart[v];
+    }
+
+    public int rowEnd(int v) {
+        return rowStart[v + 1];
+    }
+
+    public int column(int e) {
+        return columns[e];
+    }
+
+    public double value(int e) {
+        return values[e];
+    }
+}
@@ -0,0 +1,284 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.apache.spark.Partitioner;
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.expressions.Window;
+import org.apache.spark.sql.expressions.WindowSpec;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.storage.StorageLevel;
+import scala.Option;
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.apache.spark.sql.functions.abs;
+import static org.apache.spark.sql.functions.coalesce;
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.count;
+import static org.apache.spark.sql.functions.greatest;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.max;
+import static org.apache.spark.sql.functions.not;
+import static org.apache.spark.sql.functions.row_number;
+import static org.apache.spark.sql.functions.sum;
+import static org.apache.spark.sql.functions.when;
+
+/**
+ * Adsorption iterations on Spark SQL DataFrames instead of RDDs of label vectors
+ *
+ * Labels are exploded into (vertex, label, weight) rows and edges into (src, dst,
+ * edgeWeight) rows, so an iteration is a join on vertex = src and a sum grouped by
+ * (dst, label). Pruning is a window over each vertex's labels. Catalyst plans these as
+ * whole-stage generated code over binary rows, with no LabelVector objects or boxed
+ * tuples in between. The iterations match AdsorptionRankJob.runAdsorption (propagate,
+ * prune, restore seed labels, measure change), starting from the same weighted
+ * adjacency and returning the same RDD, so the two engines can be compared on one graph.
+ */
+public class DataFrameAdsorptionEngine {
+    private static final String SHUFFLE_PARTITIONS = "spark.sql.shuffle.partitions";
+
+    private static final StructType EDGE_SCHEMA = new StructType()
+            .add("src", DataTypes.IntegerType, false)
+            .add("dst", DataTypes.IntegerType, false)
+            .add("edgeWeight", DataTypes.DoubleType, false);
+
+    private static final StructType LABEL_SCHEMA = new StructType()
+            .add("vertex", DataTypes.IntegerType, false)
+            .add("label", DataTypes.IntegerType, false)
+            .add("weight", DataTypes.DoubleType, false);
+
+    private final SparkSession spark;
+    private final AdsorptionConfig config;
+
+    // Where the metrics of every iteration are recorded
+    private final RunMetrics metrics;
+
+    public DataFrameAdsorptionEngine(SparkSession spark, AdsorptionConfig config, RunMetrics metrics) {
+        this.spark = spark;
+        this.config = config;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Run adsorption over the weighted adjacency from the initial labels and return the final
+     * labels of every labeled vertex, partitioned by the given partitioner
+     *
+     * @param userCount users hold the vertex ids [0, userCount) and keep their own label
+     */
+    public JavaPairRDD<Integer, LabelVector> propagate(JavaPairRDD<Integer, Adjacency> edgeWeights,
+                                                       JavaPairRDD<Integer, LabelVector> initialLabels,
+                                                       int userCount,
+                                                       Partitioner partitioner) {
+        // Joins and aggregations shuffle into as many partitions as the RDD path uses. The setting
+        // belongs to the session, so it only holds while this engine plans its queries; the
+        // result is converted to an RDD, and so planned, before it is restored
+        Option<String> shufflePartitions = spark.conf().getOption(SHUFFLE_PARTITIONS);
+        spark.conf().set(SHUFFLE_PARTITIONS, partitioner.numPartitions());
+        try {
+            return iterate(edgeWeights, initialLabels, userCount, partitioner);
+        } finally {
+            if (shufflePartitions.isDefined()) {
+                spark.conf().set(SHUFFLE_PARTITIONS, shufflePartitions.get());
+            } else {
+                spark.conf().unset(SHUFFLE_PARTITIONS);
+            }
+        }
+    }
+
+    private JavaPairRDD<Integer, LabelVector> iterate(JavaPairRDD<Integer, Adjacency> edgeWeights,
+                                                      JavaPairRDD<Integer, LabelVector> initialLabels,
+                                                      int userCount,
+                                                      Partitioner partitioner) {
+        // The edges are laid out by source to match the labels they are joined with
+        int partitions = partitioner.numPartitions();
+
+        Dataset<Row> edges = spark.createDataFrame(explodeEdges(edgeWeights), EDGE_SCHEMA)
+                .repartition(partitions, col("src"))
+                .persist(StorageLevel.MEMORY_AND_DISK());
+        Dataset<Row> labels = spark.createDataFrame(explodeLabels(initialLabels), LABEL_SCHEMA)
+                .repartition(partitions, col("vertex"))
+                .persist(StorageLevel.MEMORY_AND_DISK());
+        AdsorptionRankJob.log("Built edge DataFrame of " + edges.count() + " weighted edges");
+
+        int topK = config.getTopK();
+        double epsilon = config.getEpsilon();
+        int maxIterations = config.getMaxIterations();
+        double convergenceThreshold = config.getConvergenceThreshold();
+        int checkpointInterval = config.getCheckpointInterval();
+
+        // A vertex's labels, heaviest first and ties in label order as in LabelVector.prune. Rows
+        // of labels the vertex only had before this iteration have no weight and rank last
+        WindowSpec byVertex = Window.partitionBy(col("vertex"));
+        WindowSpec byWeight = byVertex.orderBy(col("weight").desc_nulls_last(), col("label").asc());
+        Column kept = col("weight").isNotNull();
+        if (topK > 0) {
+            kept = kept.and(col("rank").leq(topK));
+        }
+        if (epsilon > 0) {
+            kept = kept.and(col("weight").geq(epsilon));
+        }
+        Column isUser = col("vertex").lt(userCount);
+        Column isSeed = isUser.and(col("label").equalTo(col("vertex")));
+
+        boolean converged = false;
+        int iteration = 0;
+        long prunedLabelsTotal = 0;
+        double prunedMassTotal = 0.0;
+
+        while (!converged && iteration < maxIterations) {
+            RunMetrics.Stage stage = metrics.startIteration(iteration + 1);
+
+            // Every edge scales its source's labels; each target sums what arrives per label
+            Dataset<Row> combined = labels
+                    .join(edges, col("vertex").equalTo(col("src")))
+                    .groupBy(col("dst"), col("label"))
+                    .agg(sum(col("weight").multiply(col("edgeWeight"))).as("weight"))
+                    .withColumnRenamed("dst", "vertex");
+
+            // Line each label up with its weight from the previous iteration, so the change can
+            // be measured from the same rows that are pruned
+            Dataset<Row> old = labels.select(
+                    col("vertex").as("oldVertex"), col("label").as("oldLabel"), col("weight").as("oldWeight"));
+            Dataset<Row> aligned = combined
+                    .join(old, col("vertex").equalTo(col("oldVertex")).and(col("label").equalTo(col("oldLabel"))),
+                            "full_outer")
+                    .select(coalesce(col("vertex"), col("oldVertex")).as("vertex"),
+                            coalesce(col("label"), col("oldLabel")).as("label"),
+                            col("weight"), col("oldWeight"));
+
+            // Rank each vertex's labels and note its total and surviving mass, whether it received
+            // any labels and whether it has a row for its own label, so pruning, rescaling and the
+            // iteration's statistics need only the one shuffle by vertex
+            Dataset<Row> ranked = aligned
+                    .withColumn("rank", row_number().over(byWeight))
+                    .withColumn("kept", kept)
+                    .withColumn("total", sum(col("weight")).over(byVertex))
+                    .withColumn("keptTotal", sum(when(col("kept"), col("weight")).otherwise(0.0)).over(byVertex))
+                    .withColumn("received", max(col("weight").isNotNull()).over(byVertex))
+                    .withColumn("hasSeed", max(isSeed).over(byVertex))
+                    .withColumn("size", sum(when(col("kept").and(not(isSeed)), 1L).otherwise(0L)).over(byVertex)
+                            .plus(when(isUser.and(col("received")), 1L).otherwise(0L)))
+                    .persist(StorageLevel.MEMORY_AND_DISK());
+
+            // Survivors are rescaled to keep the vertex's mass, then every user that received
+            // labels gets its own label back with value 1.0
+            Column rescaled = when(col("keptTotal").gt(0.0),
+                    col("weight").multiply(col("total")).divide(col("keptTotal")))
+                    .otherwise(col("weight"));
+            Dataset<Row> survivors = ranked
+                    .filter(col("kept").and(not(isSeed)))
+                    .select(col("vertex"), col("label"), rescaled.as("weight"));
+            Dataset<Row> seeds = ranked
+                    .filter(col("rank").equalTo(1).and(isUser).and(col("received")))
+                    .select(col("vertex"), col("vertex").as("label"), lit(1.0).as("weight"));
+            Dataset<Row> next = survivors.unionByName(seeds)
+                    .persist(StorageLevel.MEMORY_AND_DISK());
+
+            // Periodically cut the plan so it doesn't grow with every iteration
+            if (checkpointInterval > 0 && (iteration + 1) % checkpointInterval == 0) {
+                Dataset<Row> checkpointed = config.getCheckpointDir() != null
+                        ? next.checkpoint() : next.localCheckpoint();
+                next.unpersist(false);
+                next = checkpointed;
+            }
+
+            // The weight each row ends the iteration with, as written to next, and its change. A
+            // user that received labels but has no row for its own label gains the seed's 1.0 on
+            // its first row
+            Column nextWeight = when(isSeed, when(col("received"), 1.0).otherwise(0.0))
+                    .when(col("kept"), rescaled)
+                    .otherwise(0.0);
+            Column diff = abs(nextWeight.minus(coalesce(col("oldWeight"), lit(0.0))));
+            Column seedGain = when(col("rank").equalTo(1).and(isUser).and(col("received")).and(not(col("hasSeed"))),
+                    1.0).otherwise(0.0);
+            Column pruned = col("weight").isNotNull().and(not(col("kept")));
+            Row stats = ranked
+                    .agg(count(when(col("rank").equalTo(1).and(col("size").gt(0)), 1)),
+                            coalesce(sum(when(col("rank").equalTo(1), col("size"))), lit(0L)),
+                            coalesce(max(col("size")), lit(0L)),
+                            count(when(pruned, 1)),
+                            coalesce(sum(when(pruned, col("weight"))), lit(0.0)),
+                            coalesce(max(greatest(diff, seedGain)), lit(0.0)),
+                            coalesce(sum(diff.plus(seedGain)), lit(0.0)))
+                    .first();
+
+            ranked.unpersist(false);
+            labels.unpersist(false);
+            labels = next;
+            iteration++;
+
+            long labeledVertices = stats.getLong(0);
+            long prunedLabels = stats.getLong(3);
+            double prunedMass = stats.getDouble(4);
+            double maxDelta = stats.getDouble(5);
+            double l1Delta = stats.getDouble(6);
+            prunedLabelsTotal += prunedLabels;
+            prunedMassTotal += prunedMass;
+            stage.records(labeledVertices)
+                    .labels(stats.getLong(1), stats.getLong(2))
+                    .pruned(prunedLabels, prunedMass)
+                    .change(maxDelta, l1Delta)
+                    .finish();
+            AdsorptionRankJob.log("Completed iteration " + iteration + ": " + labeledVertices
+                    + " labeled vertices, max change " + maxDelta + ", total change " + l1Delta);
+
+            // Check for convergence by the maximum change in any label weight
+            if (labeledVertices == 0) {
+                converged = true;
+                AdsorptionRankJob.log("No labeled vertices, considering converged after " + iteration + " iterations");
+            } else if (maxDelta < convergenceThreshold) {
+                converged = true;
+                AdsorptionRankJob.log("Converged after " + iteration + " iterations");
+            }
+        }
+
+        AdsorptionRankJob.log("Pruned " + prunedLabelsTotal + " labels carrying " + prunedMassTotal
+                + " total weight over " + iteration + " iterations");
+
+        JavaPairRDD<Integer, LabelVector> result = collectLabels(labels, partitioner);
+        edges.unpersist(false);
+        return result;
+    }
+
+    private static JavaRDD<Row> explodeEdges(JavaPairRDD<Integer, Adjacency> edgeWeights) {
+        return edgeWeights.flatMap(t -> {
+            Adjacency adjacency = t._2;
+            List<Row> rows = new ArrayList<>(adjacency.size());
+            for (int i = 0; i < adjacency.size(); i++) {
+                rows.add(RowFactory.create(t._1, adjacency.targetAt(i), adjacency.weightAt(i)));
+            }
+            return rows.iterator();
+        });
+    }
+
+    private static JavaRDD<Row> explodeLabels(JavaPairRDD<Integer, LabelVector> labels) {
+        return labels.flatMap(t -> {
+            LabelVector vector = t._2;
+            List<Row> rows = new ArrayList<>(vector.size());
+            for (int i = 0; i < vector.size(); i++) {
+                rows.add(RowFactory.create(t._1, vector.labelAt(i), vector.weightAt(i)));
+            }
+            return rows.iterator();
+        });
+    }
+
+    /**
+     * Fold the label rows back into one LabelVector per vertex, for state saving and top-N selection
+     */
+    private static JavaPairRDD<Integer, LabelVector> collectLabels(Dataset<Row> labels, Partitioner partitioner) {
+        return labels.javaRDD()
+                .mapToPair(row -> new Tuple2<>(row.getInt(0), new Tuple2<>(row.getInt(1), row.getDouble(2))))
+                .aggregateByKey(new LabelVector(), partitioner,
+                        (vector, label) -> vector.set(label._1, label._2),
+                        LabelVector::add)
+                .persist(StorageLevel.MEMORY_AND_DISK());
+    }
+}
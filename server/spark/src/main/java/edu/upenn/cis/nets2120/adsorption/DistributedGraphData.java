@@ -0,0 +1,35 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.apache.spark.api.java.JavaPairRDD;
+
+/**
+ * Graph loaded into Spark, keyed by database ids
+ * Only the vertex ids live on the driver; edge RDDs hold the same pairs as the edge
+ * lists of GraphData.
+ */
+public class DistributedGraphData {
+    public final int[] userIds;
+    public final int[] postIds;
+    public final int[] hashtagIds;
+    public final JavaPairRDD<Integer, Integer> userPostLikes;
+    public final JavaPairRDD<Integer, Integer> userPostComments;
+    public final JavaPairRDD<Integer, Integer> userUserFollows;
+    public final JavaPairRDD<Integer, Integer> postHashtags;
+    public final JavaPairRDD<Integer, Integer> userHashtags;
+
+    public DistributedGraphData(int[] userIds, int[] postIds, int[] hashtagIds,
+                                JavaPairRDD<Integer, Integer> userPostLikes,
+                                JavaPairRDD<Integer, Integer> userPostComments,
+                                JavaPairRDD<Integer, Integer> userUserFollows,
+                                JavaPairRDD<Integer, Integer> postHashtags,
+                                JavaPairRDD<Integer, Integer> userHashtags) {
+        this.userIds = userIds;
+        this.postIds = postIds;
+        this.hashtagIds = hashtagIds;
+        this.userPostLikes = userPostLikes;
+        this.userPostComments = userPostComments;
+        this.userUserFollows = userUserFollows;
+        this.postHashtags = postHashtags;
+        this.userHashtags = userHashtags;
+    }
+}
@@ -0,0 +1,57 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Growable list of (source, target) int pairs backed by primitive arrays
+ * Used on the driver to collect edges without boxing or string encoding
+ */
+public class EdgeList implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private int[] sources;
+    private int[] targets;
+    private int size;
+
+    public EdgeList() {
+        this(16);
+    }
+
+    public EdgeList(int capacity) {
+        sources = new int[Math.max(1, capacity)];
+        targets = new int[Math.max(1, capacity)];
+    }
+
+    public void add(int source, int target) {
+        if (size == sources.length) {
+            sources = Arrays.copyOf(sources, size * 2);
+            targets = Arrays.copyOf(targets, size * 2);
+        }
+        sources[size] = source;
+        targets[size] = target;
+        size++;
+    }
+
+    public void addAll(EdgeList other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.sources[i], other.targets[i]);
+        }
+    }
+
+    public int source(int i) {
+        return sources[i];
+    }
+
+    public int target(int i) {
+        return targets[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
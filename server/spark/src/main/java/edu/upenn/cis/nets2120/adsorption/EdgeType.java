@@ -0,0 +1,60 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+/**
+ * Kinds of directed edges in the adsorption graph, with the share of a vertex's
+ * outgoing weight that each kind gets
+ *
+ * The weight of an edge is its type's base weight divided by the number of
+ * edges of that type leaving the same source vertex. A vertex whose types' base
+ * weights add up to more than 1 has them scaled down to add up to 1 (see
+ * Adjacency.fromPackedEdges): a user with likes, comments, follows and hashtags
+ * splits its weight 0.3 : 0.5 : 0.2 : 0.3, while a user with only comments keeps 0.5.
+ */
+public enum EdgeType {
+    // Likes get 0.3 weight
+    USER_LIKES_POST(0.3),
+    // Comments get 0.5 weight (stronger signal than likes)
+    USER_COMMENTS_POST(0.5),
+    // User-user edges get 0.2 weight
+    USER_USER(0.2),
+    // Post to user weights for likes
+    POST_LIKED_BY_USER(1.0),
+    // Post to user weights for comments
+    POST_COMMENTED_BY_USER(1.0),
+    // Hashtags a user is interested in
+    USER_INTERESTED_IN_HASHTAG(0.3),
+    // Hashtags a post is tagged with
+    POST_HAS_HASHTAG(0.5),
+    // Hashtag to the users interested in it
+    HASHTAG_INTERESTS_USER(1.0),
+    // Hashtag to the posts tagged with it
+    HASHTAG_TAGS_POST(1.0);
+
+    private static final EdgeType[] VALUES = values();
+
+    private final double baseWeight;
+
+    EdgeType(double baseWeight) {
+        this.baseWeight = baseWeight;
+    }
+
+    public double getBaseWeight() {
+        return baseWeight;
+    }
+
+    /**
+     * Pack an edge's target vertex and type into one long, so typed edges can be
+     * shuffled as (source, long) pairs
+     */
+    public long pack(int target) {
+        return ((long) target << 8) | ordinal();
+    }
+
+    public static int unpackTarget(long packed) {
+        return (int) (packed >> 8);
+    }
+
+    public static EdgeType unpackType(long packed) {
+        return VALUES[(int) (packed & 0xFF)];
+    }
+}
@@ -0,0 +1,213 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.util.StatCounter;
+import scala.Tuple2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Picks the settings that depend on the size of the graph and of the machine or cluster
+ * it runs on, so the same jar needs no hand-tuning on a laptop or on a cluster
+ *
+ * Planning happens twice. Before anything is loaded, engine() picks the engine from row
+ * counts: the in-memory CSR engine when the graph and its labels fit comfortably in this
+ * JVM, Spark otherwise or whenever the job was submitted to a cluster master. After the
+ * graph is loaded, plan() measures vertices, edges and the out-degree distribution,
+ * estimates the label state an iteration keeps alive, and picks the partition count,
+ * storage level, checkpoint interval, split degree, iteration limit and topK from it.
+ * Every estimate is an upper bound: it assumes each vertex holds topK labels.
+ */
+public class ExecutionPlanner {
+    // Bytes of one label entry (an int label and a double weight) and of one weighted edge
+    static final long LABEL_BYTES = 12;
+    static final long EDGE_BYTES = 12;
+
+    // Label vectors alive during a Spark iteration: the previous ones, the combined messages and
+    // the new ones. The in-memory engine only keeps the previous and the new labels
+    static final int LIVE_LABEL_COPIES = 3;
+    static final int CSR_LABEL_COPIES = 2;
+
+    // The in-memory engine keeps every edge in the out- and in-edge CSR, plus the edge list it was built from
+    static final long CSR_EDGE_BYTES = 2 * EDGE_BYTES + 2 * Integer.BYTES;
+
+    // Aim for partitions of about this much iteration state
+    static final long PARTITION_BYTES = 64L << 20;
+
+    // Share of the heap the in-memory engine may plan to use
+    static final double CSR_HEAP_SHARE = 0.5;
+
+    // Bounds of the planned settings
+    static final int MIN_TOP_K = 20;
+    static final int MIN_ITERATIONS = 5;
+    static final int MAX_ITERATIONS = 30;
+
+    // Checkpoint intervals for state that fits in memory, and for state that spills to disk,
+    // where evicted partitions are recomputed from the lineage and it pays to keep it short
+    static final int CHECKPOINT_IN_MEMORY = 10;
+    static final int CHECKPOINT_SPILLING = 3;
+
+    private final AdsorptionConfig config;
+
+    public ExecutionPlanner(AdsorptionConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Vertex count and out-degree distribution of a loaded graph
+     */
+    public static class Profile {
+        final long users;
+        final long vertices;
+
+        // Out-degree of every vertex with out-edges; the sum is the number of edges
+        final StatCounter outDegrees;
+
+        Profile(long users, long vertices, StatCounter outDegrees) {
+            this.users = users;
+            this.vertices = vertices;
+            this.outDegrees = outDegrees;
+        }
+
+        public static Profile of(VertexDictionary dictionary, CsrGraph outEdges) {
+            StatCounter degrees = new StatCounter();
+            for (int v = 0; v < outEdges.numVertices(); v++) {
+                if (outEdges.rowEnd(v) > outEdges.rowStart(v)) {
+                    degrees.merge(outEdges.rowEnd(v) - outEdges.rowStart(v));
+                }
+            }
+            return new Profile(dictionary.count(VertexType.USER), dictionary.size(), degrees);
+        }
+
+        /**
+         * Profile of edges keyed by source vertex id, counted with one small shuffle
+         */
+        public static Profile of(VertexDictionary dictionary, JavaPairRDD<Integer, ?> edges) {
+            StatCounter degrees = edges
+                    .mapToPair(edge -> new Tuple2<>(edge._1, 1L))
+                    .reduceByKey(Long::sum)
+                    .values()
+                    .mapToDouble(Long::doubleValue)
+                    .stats();
+            return new Profile(dictionary.count(VertexType.USER), dictionary.size(), degrees);
+        }
+
+        long edges() {
+            return (long) outDegrees.sum();
+        }
+
+        double meanDegree() {
+            return vertices == 0 ? 0.0 : outDegrees.sum() / vertices;
+        }
+
+        long maxDegree() {
+            return outDegrees.count() == 0 ? 0 : (long) outDegrees.max();
+        }
+    }
+
+    /**
+     * Engine for a graph of about this size, before it is loaded
+     *
+     * @param master spark.master the job was submitted with, or null
+     * @param heapBytes largest heap of this JVM
+     */
+    public AdsorptionConfig.Engine engine(long users, long vertices, long edges, String master, long heapBytes) {
+        long bytes = csrBytes(users, vertices, edges);
+        AdsorptionConfig.Engine engine;
+        if (master != null && !master.startsWith("local")) {
+            // A cluster manager waits for the Spark context, and has the memory the driver may not
+            engine = AdsorptionConfig.Engine.SPARK;
+        } else {
+            engine = bytes <= heapBytes * CSR_HEAP_SHARE ? AdsorptionConfig.Engine.CSR : AdsorptionConfig.Engine.SPARK;
+        }
+        AdsorptionRankJob.log("Planned engine " + engine + " for about " + vertices + " vertices and " + edges
+                + " edges: in-memory engine needs about " + megabytes(bytes) + " MB of " + megabytes(heapBytes)
+                + " MB heap" + (master != null ? ", master " + master : ""));
+        return engine;
+    }
+
+    /**
+     * This planner's config with every setting that isn't set planned for the profile
+     *
+     * @param parallelism tasks or threads that run at once
+     * @param memoryBytes memory for the iteration state: Spark's storage memory, or this JVM's heap
+     */
+    public AdsorptionConfig plan(Profile profile, int parallelism, long memoryBytes) {
+        boolean spark = config.getEngine().usesSpark();
+        long stateBytes = spark
+                ? stateBytes(profile.users, profile.vertices, profile.edges())
+                : csrBytes(profile.users, profile.vertices, profile.edges());
+        long budgetBytes = spark ? memoryBytes : (long) (memoryBytes * CSR_HEAP_SHARE);
+        boolean fits = stateBytes <= budgetBytes;
+
+        Map<String, String> planned = new LinkedHashMap<>();
+        if (spark) {
+            long byState = (stateBytes + PARTITION_BYTES - 1) / PARTITION_BYTES;
+            int partitions = (int) Math.min(Integer.MAX_VALUE, Math.max(2L * parallelism, byState));
+            planned.put("partitions", String.valueOf(partitions));
+            planned.put("storageLevel", fits ? "MEMORY_AND_DISK" : "MEMORY_AND_DISK_SER");
+            planned.put("checkpointInterval", String.valueOf(fits ? CHECKPOINT_IN_MEMORY : CHECKPOINT_SPILLING));
+            int configuredPartitions = config.getPartitions() > 0 ? config.getPartitions() : partitions;
+            planned.put("splitDegree", String.valueOf(HotVertices.threshold(profile.outDegrees,
+                    configuredPartitions, config.getSplitDegree())));
+        } else if (!fits && config.getTopK() > 0) {
+            // The in-memory engine can't spill, so fewer labels per vertex it is
+            long perLabel = profile.vertices * LABEL_BYTES * CSR_LABEL_COPIES;
+            long budget = Math.max(0, budgetBytes - profile.edges() * CSR_EDGE_BYTES);
+            long topK = perLabel == 0 ? config.getTopK() : budget / perLabel;
+            planned.put("topK", String.valueOf(Math.max(MIN_TOP_K, Math.min(config.getTopK(), topK))));
+        }
+        planned.put("maxIterations", String.valueOf(iterations(profile)));
+
+        AdsorptionConfig result = config.withPlanned(planned);
+        AdsorptionRankJob.log("Graph profile: " + profile.vertices + " vertices (" + profile.users + " users), "
+                + profile.edges() + " edges, out-degree mean " + profile.meanDegree() + ", max "
+                + profile.maxDegree() + "; iteration state up to " + megabytes(stateBytes) + " MB of "
+                + megabytes(budgetBytes) + " MB memory, " + parallelism + " parallel tasks");
+        StringBuilder plan = new StringBuilder("Execution plan: engine=" + result.getEngine());
+        for (String name : planned.keySet()) {
+            plan.append(", ").append(name).append('=').append(result.get(name))
+                    .append(config.isSet(name) ? " (configured)" : " (planned)");
+        }
+        AdsorptionRankJob.log(plan.toString());
+        return result;
+    }
+
+    /**
+     * Plan the in-memory engine's settings for the profile, with this JVM's heap and threads
+     */
+    public AdsorptionConfig planInMemory(Profile profile) {
+        int threads = config.getThreads() > 0 ? config.getThreads() : Runtime.getRuntime().availableProcessors();
+        return plan(profile, threads, Runtime.getRuntime().maxMemory());
+    }
+
+    /**
+     * Iterations for labels to reach every vertex: a random graph of mean degree d over V
+     * vertices has a diameter of about ln V / ln d, and every hop between two users passes
+     * through a post, so twice that
+     */
+    static int iterations(Profile profile) {
+        if (profile.vertices < 2) {
+            return MIN_ITERATIONS;
+        }
+        double diameter = Math.log(profile.vertices) / Math.log(Math.max(2.0, profile.meanDegree()));
+        return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, Math.ceil(2 * diameter)));
+    }
+
+    private long csrBytes(long users, long vertices, long edges) {
+        return vertices * labelsPerVertex(users) * LABEL_BYTES * CSR_LABEL_COPIES + edges * CSR_EDGE_BYTES;
+    }
+
+    private long stateBytes(long users, long vertices, long edges) {
+        return vertices * labelsPerVertex(users) * LABEL_BYTES * LIVE_LABEL_COPIES + edges * EDGE_BYTES;
+    }
+
+    private long labelsPerVertex(long users) {
+        return config.getTopK() > 0 ? Math.min(config.getTopK(), users) : users;
+    }
+
+    private static long megabytes(long bytes) {
+        return bytes >> 20;
+    }
+}
@@ -0,0 +1,39 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+/**
+ * Raw graph loaded from the database, keyed by database ids
+ * Edge lists hold (user_id, post_id), (user_id, user_id), (post_id, hashtag) or
+ * (user_id, hashtag) pairs; hashtags are identified by their HashtagDictionary ids.
+ */
+public class GraphData {
+    public final int[] userIds;
+    public final int[] postIds;
+    public final int[] hashtagIds;
+    public final EdgeList userPostLikes;
+    public final EdgeList userPostComments;
+    public final EdgeList userUserFollows;
+    public final EdgeList postHashtags;
+    public final EdgeList userHashtags;
+
+    /**
+     * A graph without hashtags
+     */
+    public GraphData(int[] userIds, int[] postIds,
+                     EdgeList userPostLikes, EdgeList userPostComments, EdgeList userUserFollows) {
+        this(userIds, postIds, new int[0], userPostLikes, userPostComments, userUserFollows,
+                new EdgeList(), new EdgeList());
+    }
+
+    public GraphData(int[] userIds, int[] postIds, int[] hashtagIds,
+                     EdgeList userPostLikes, EdgeList userPostComments, EdgeList userUserFollows,
+                     EdgeList postHashtags, EdgeList userHashtags) {
+        this.userIds = userIds;
+        this.postIds = postIds;
+        this.hashtagIds = hashtagIds;
+        this.userPostLikes = userPostLikes;
+        this.userPostComments = userPostComments;
+        this.userUserFollows = userUserFollows;
+        this.postHashtags = postHashtags;
+        this.userHashtags = userHashtags;
+    }
+}
@@ -0,0 +1,625 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.StorageLevel;
+import scala.Tuple2;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntPredicate;
+import java.util.stream.StreamSupport;
+
+import static org.apache.spark.sql.functions.col;
+
+/**
+ * Loads the users/posts graph from the database in parallel id ranges
+ *
+ * Every table is split into ranges of its primary key (user_id, post_id) and each
+ * range is read on its own connection: by a thread pool for the in-memory engine,
+ * or by Spark's partitioned JDBC source for the Spark engine, in which case the
+ * edges go straight into RDDs and never pass through the driver.
+ *
+ * Hashtag edges are parsed from free text in the same partitioned passes: posts.hashtags
+ * while posts are read, plus users.interests and the post_hashtags and user_interests
+ * tables where the database has them. Missing optional sources only log a warning.
+ * Co-commenter (user-user) edges are derived from the loaded replies, see CoCommenters.
+ */
+public class GraphLoader {
+    // Optional hashtag sources as (id, hashtag text) rows; each is read by id range like the tables above
+    private static final String USER_INTERESTS_COLUMN_QUERY = "SELECT user_id, interests FROM users";
+    private static final String POST_HASHTAGS_TABLE_QUERY = "SELECT post_id, hashtag FROM post_hashtags";
+    private static final String USER_INTERESTS_TABLE_QUERY =
+            "SELECT u.user_id AS user_id, ui.hashtag AS hashtag " +
+            "FROM user_interests ui JOIN users u ON ui.username = u.username";
+
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final AdsorptionConfig config;
+
+    public GraphLoader(String dbUrl, String dbUser, String dbPassword, AdsorptionConfig config) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        this.config = config;
+    }
+
+    /**
+     * Inclusive [min, max] of an integer column, or null if the table is empty
+     */
+    private long[] bounds(String table, String column) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+             PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT MIN(" + column + "), MAX(" + column + ") FROM " + table);
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            long min = rs.getLong(1);
+            if (rs.wasNull()) {
+                return null;
+            }
+            return new long[] {min, rs.getLong(2)};
+        }
+    }
+
+    /**
+     * Users, vertices and edges a full load would give, estimated from row counts for
+     * ExecutionPlanner before anything is loaded
+     * Co-commenter edges are estimated as if every thread had the mean number of commenters;
+     * hashtags are left out.
+     */
+    public long[] estimateSize() throws SQLException {
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+             PreparedStatement users = conn.prepareStatement("SELECT COUNT(*) FROM users");
+             PreparedStatement posts = conn.prepareStatement(
+                     "SELECT COUNT(*), COUNT(parent_post), COUNT(DISTINCT parent_post) FROM posts");
+             ResultSet userCount = users.executeQuery();
+             ResultSet postCounts = posts.executeQuery()) {
+            userCount.next();
+            postCounts.next();
+            long userRows = userCount.getLong(1);
+            long replies = postCounts.getLong(2);
+            long threads = postCounts.getLong(3);
+            long perThread = threads == 0 ? 0 : Math.min(capacity(), replies / threads);
+            long edges = 2 * replies + threads * perThread * Math.max(0, perThread - 1);
+            return new long[] {userRows, userRows + postCounts.getLong(1), edges};
+        }
+    }
+
+    private long capacity() {
+        return config.getMaxCoCommenters() > 0 ? config.getMaxCoCommenters() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Split [min, max] into at most n half-open ranges [start, end)
+     */
+    private static List<long[]> ranges(long[] bounds, int n) {
+        if (bounds == null) {
+            return Collections.emptyList();
+        }
+        long span = bounds[1] - bounds[0] + 1;
+        long step = Math.max(1, (span + n - 1) / n);
+        List<long[]> ranges = new ArrayList<>();
+        for (long start = bounds[0]; start <= bounds[1]; start += step) {
+            ranges.add(new long[] {start, Math.min(start + step, bounds[1] + 1)});
+        }
+        return ranges;
+    }
+
+    private int loadPartitions() {
+        return config.getLoadPartitions() > 0 ? config.getLoadPartitions() : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Reads one id range of a table on its own connection
+     */
+    private interface RangeReader<T> {
+        T read(Connection conn, long start, long end) throws SQLException;
+    }
+
+    /**
+     * Run a reader over every range on a thread pool, one connection per range, results in range order
+     */
+    private <T> List<T> readRanges(ExecutorService pool, List<long[]> ranges, RangeReader<T> reader)
+            throws SQLException {
+        List<Future<T>> futures = new ArrayList<>();
+        for (long[] range : ranges) {
+            futures.add(pool.submit(() -> {
+                try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+                    return reader.read(conn, range[0], range[1]);
+                }
+            }));
+        }
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while loading graph", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Error loading graph: " + e.getCause().getMessage(), e.getCause());
+        }
+        return results;
+    }
+
+    private PreparedStatement rangeStatement(Connection conn, String sql, long start, long end) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        stmt.setFetchSize(config.getFetchSize());
+        stmt.setLong(1, start);
+        stmt.setLong(2, end);
+        return stmt;
+    }
+
+    /**
+     * Load the whole graph into driver memory, for the in-memory engine
+     */
+    public GraphData loadLocal() throws SQLException {
+        int partitions = loadPartitions();
+        ExecutorService pool = Executors.newFixedThreadPool(partitions);
+        try {
+            // Load users
+            List<int[]> userChunks = readRanges(pool, ranges(bounds("users", "user_id"), partitions),
+                    (conn, start, end) -> {
+                        IntArrayBuilder ids = new IntArrayBuilder();
+                        try (PreparedStatement stmt = rangeStatement(conn,
+                                "SELECT user_id FROM users WHERE user_id >= ? AND user_id < ?", start, end);
+                             ResultSet rs = stmt.executeQuery()) {
+                            while (rs.next()) {
+                                ids.add(rs.getInt(1));
+                            }
+                        }
+                        return ids.toArray();
+                    });
+            int[] userIds = IntArrayBuilder.concat(userChunks);
+            AdsorptionRankJob.log("Loaded " + userIds.length + " users from users table");
+
+            // We don't use post_likes table anymore
+            AdsorptionRankJob.log("Skipping post_likes table as it doesn't exist");
+
+            // Load posts, comment edges (replies) and hashtag edges in the same pass over posts.
+            // Every range interns its hashtags into one shared dictionary. Ranges are read in
+            // post_id order and concatenated in range order, so replies end up in reply order
+            HashtagDictionary hashtags = new HashtagDictionary();
+            List<long[]> postRanges = ranges(bounds("posts", "post_id"), partitions);
+            List<PostChunk> postChunks = readRanges(pool, postRanges,
+                    (conn, start, end) -> {
+                        PostChunk chunk = new PostChunk();
+                        IntArrayBuilder ids = new IntArrayBuilder();
+                        try (PreparedStatement stmt = rangeStatement(conn,
+                                "SELECT post_id, author_id, parent_post, hashtags FROM posts " +
+                                "WHERE post_id >= ? AND post_id < ? ORDER BY post_id",
+                                start, end);
+                             ResultSet rs = stmt.executeQuery()) {
+                            while (rs.next()) {
+                                int postId = rs.getInt(1);
+                                ids.add(postId);
+                                int parentPost = rs.getInt(3);
+                                if (!rs.wasNull()) {
+                                    chunk.replies.add(rs.getInt(2), parentPost);
+                                }
+                                for (int hashtag : hashtags.ids(rs.getString(4))) {
+                                    chunk.hashtags.add(postId, hashtag);
+                                }
+                            }
+                        }
+                        chunk.ids = ids.toArray();
+                        return chunk;
+                    });
+            List<int[]> postIdChunks = new ArrayList<>();
+            EdgeList userPostComments = new EdgeList();
+            EdgeList postHashtags = new EdgeList();
+            for (PostChunk chunk : postChunks) {
+                postIdChunks.add(chunk.ids);
+                userPostComments.addAll(chunk.replies);
+                postHashtags.addAll(chunk.hashtags);
+            }
+            int[] postIds = IntArrayBuilder.concat(postIdChunks);
+            AdsorptionRankJob.log("Loaded " + postIds.length + " posts from posts table");
+            AdsorptionRankJob.log("Loaded comment relationship data");
+
+            // Hashtag edges from the optional sources
+            List<long[]> userRanges = ranges(bounds("users", "user_id"), partitions);
+            postHashtags.addAll(readHashtagEdges(pool, postRanges,
+                    POST_HASHTAGS_TABLE_QUERY + " WHERE post_id >= ? AND post_id < ?", hashtags, "post_hashtags"));
+            EdgeList userHashtags = readHashtagEdges(pool, userRanges,
+                    USER_INTERESTS_COLUMN_QUERY + " WHERE user_id >= ? AND user_id < ?", hashtags, "users.interests");
+            userHashtags.addAll(readHashtagEdges(pool, userRanges,
+                    USER_INTERESTS_TABLE_QUERY + " WHERE u.user_id >= ? AND u.user_id < ?", hashtags, "user_interests"));
+            int[] hashtagIds = distinctTargets(postHashtags, userHashtags);
+            AdsorptionRankJob.log("Loaded " + hashtagIds.length + " hashtags with " + postHashtags.size()
+                    + " post-hashtag and " + userHashtags.size() + " user-hashtag edges");
+            if (hashtags.collisions() > 0) {
+                AdsorptionRankJob.log("Warning: " + hashtags.collisions() + " hashtags share an id with another");
+            }
+
+            // Create user-user relationships based on co-commenting patterns
+            EdgeList userUserFollows = CoCommenters.edges(userPostComments, config.getMaxCoCommenters());
+            AdsorptionRankJob.log("Created " + userUserFollows.size() + " user-user edges based on co-commenting");
+
+            return new GraphData(userIds, postIds, hashtagIds, new EdgeList(), userPostComments, userUserFollows,
+                    postHashtags, userHashtags);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Ids, replies and hashtag edges read from one range of posts
+     */
+    private static class PostChunk {
+        int[] ids;
+        final EdgeList replies = new EdgeList();
+        final EdgeList hashtags = new EdgeList();
+    }
+
+    /**
+     * Read (id, hashtag) edges from a range query whose second column holds hashtag text
+     * The source is optional: if the query fails, e.g. because the table or column doesn't
+     * exist in this database, a warning is logged and no edges are returned.
+     */
+    private EdgeList readHashtagEdges(ExecutorService pool, List<long[]> ranges, String sql,
+                                      HashtagDictionary hashtags, String source) {
+        EdgeList result = new EdgeList();
+        try {
+            List<EdgeList> chunks = readRanges(pool, ranges, (conn, start, end) -> {
+                EdgeList edges = new EdgeList();
+                try (PreparedStatement stmt = rangeStatement(conn, sql, start, end);
+                     ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        int id = rs.getInt(1);
+                        for (int hashtag : hashtags.ids(rs.getString(2))) {
+                            edges.add(id, hashtag);
+                        }
+                    }
+                }
+                return edges;
+            });
+            chunks.forEach(result::addAll);
+        } catch (SQLException e) {
+            AdsorptionRankJob.log("Warning: Not reading hashtags from " + source + ": " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Sorted distinct targets of some edge lists
+     */
+    private static int[] distinctTargets(EdgeList... lists) {
+        IntArrayBuilder targets = new IntArrayBuilder();
+        for (EdgeList edges : lists) {
+            for (int i = 0; i < edges.size(); i++) {
+                targets.add(edges.target(i));
+            }
+        }
+        return Arrays.stream(targets.toArray()).sorted().distinct().toArray();
+    }
+
+    /**
+     * Newest posts.created_at in epoch millis, or 0 if there are no posts
+     * Read before the graph itself, so posts created during the load are picked up by the next delta.
+     */
+    public long watermark() throws SQLException {
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+             PreparedStatement stmt = conn.prepareStatement("SELECT MAX(created_at) FROM posts");
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            Timestamp newest = rs.getTimestamp(1);
+            return newest == null ? 0 : newest.getTime();
+        }
+    }
+
+    /**
+     * Load what was added since a previous load: users with ids above the known ones, and
+     * posts created at or after the watermark that the dictionary doesn't know yet, with
+     * their comment and hashtag edges, and the interests of the new users. Co-commenter edges
+     * are left to the caller, which has the old replies; interests of existing users are only
+     * re-read by a full load.
+     */
+    public GraphData loadSince(long watermark, VertexDictionary known) throws SQLException {
+        int[] knownUsers = known.rawIds(VertexType.USER);
+        long lastUser = knownUsers.length == 0 ? Long.MIN_VALUE : knownUsers[knownUsers.length - 1];
+
+        IntArrayBuilder userIds = new IntArrayBuilder();
+        IntArrayBuilder postIds = new IntArrayBuilder();
+        EdgeList userPostComments = new EdgeList();
+        EdgeList postHashtags = new EdgeList();
+        EdgeList userHashtags = new EdgeList();
+        HashtagDictionary hashtags = new HashtagDictionary();
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT user_id FROM users WHERE user_id > ?")) {
+                stmt.setFetchSize(config.getFetchSize());
+                stmt.setLong(1, lastUser);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        userIds.add(rs.getInt(1));
+                    }
+                }
+            }
+
+            // created_at only has second precision, so posts at the watermark itself are re-read
+            // and the ones already in the graph skipped
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT post_id, author_id, parent_post, hashtags FROM posts WHERE created_at >= ?")) {
+                stmt.setFetchSize(config.getFetchSize());
+                stmt.setTimestamp(1, new Timestamp(watermark));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        int postId = rs.getInt(1);
+                        if (known.encode(VertexType.POST, postId) >= 0) {
+                            continue;
+                        }
+                        postIds.add(postId);
+                        int parentPost = rs.getInt(3);
+                        if (!rs.wasNull()) {
+                            userPostComments.add(rs.getInt(2), parentPost);
+                        }
+                        for (int hashtag : hashtags.ids(rs.getString(4))) {
+                            postHashtags.add(postId, hashtag);
+                        }
+                    }
+                }
+            }
+
+            // Hashtag edges from the optional sources, for the new vertices only
+            int[] newPosts = postIds.toArray();
+            Arrays.sort(newPosts);
+            if (newPosts.length > 0) {
+                readHashtagEdges(conn, POST_HASHTAGS_TABLE_QUERY + " WHERE post_id >= ? AND post_id < ?",
+                        newPosts[0], newPosts[newPosts.length - 1] + 1L,
+                        id -> Arrays.binarySearch(newPosts, id) >= 0, hashtags, "post_hashtags", postHashtags);
+            }
+            if (userIds.size() > 0) {
+                readHashtagEdges(conn, USER_INTERESTS_COLUMN_QUERY + " WHERE user_id >= ? AND user_id < ?",
+                        lastUser + 1, Long.MAX_VALUE, id -> true, hashtags, "users.interests", userHashtags);
+                readHashtagEdges(conn, USER_INTERESTS_TABLE_QUERY + " WHERE u.user_id >= ? AND u.user_id < ?",
+                        lastUser + 1, Long.MAX_VALUE, id -> true, hashtags, "user_interests", userHashtags);
+            }
+        }
+
+        AdsorptionRankJob.log("Loaded " + userIds.size() + " new users, " + postIds.size() + " new posts and "
+                + userPostComments.size() + " new comments since " + new Timestamp(watermark));
+        AdsorptionRankJob.log("Loaded " + postHashtags.size() + " new post-hashtag and " + userHashtags.size()
+                + " new user-hashtag edges");
+        if (hashtags.collisions() > 0) {
+            AdsorptionRankJob.log("Warning: " + hashtags.collisions() + " new hashtags share an id with another");
+        }
+        return new GraphData(userIds.toArray(), postIds.toArray(), distinctTargets(postHashtags, userHashtags),
+                new EdgeList(), userPostComments, new EdgeList(), postHashtags, userHashtags);
+    }
+
+    /**
+     * Append the (id, hashtag) edges of one id range whose ids pass a filter
+     * Like the pooled variant, a query that fails because its table or column doesn't exist
+     * only logs a warning.
+     */
+    private void readHashtagEdges(Connection conn, String sql, long start, long end, IntPredicate keep,
+                                  HashtagDictionary hashtags, String source, EdgeList edges) {
+        try (PreparedStatement stmt = rangeStatement(conn, sql, start, end);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                int id = rs.getInt(1);
+                if (!keep.test(id)) {
+                    continue;
+                }
+                for (int hashtag : hashtags.ids(rs.getString(2))) {
+                    edges.add(id, hashtag);
+                }
+            }
+        } catch (SQLException e) {
+            AdsorptionRankJob.log("Warning: Not reading hashtags from " + source + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Load the graph with Spark's partitioned JDBC source
+     * Only the user and post ids are collected, to build the vertex dictionary; edges stay in RDDs.
+     */
+    public DistributedGraphData loadDistributed(SparkSession spark) throws SQLException {
+        int partitions = loadPartitions();
+        Properties props = new Properties();
+        props.setProperty("user", dbUser);
+        props.setProperty("password", dbPassword);
+        props.setProperty("fetchsize", String.valueOf(config.getFetchSize()));
+
+        // Load users
+        long[] userBounds = bounds("users", "user_id");
+        int[] userIds = userBounds == null ? new int[0] : collectInts(spark.read()
+                .jdbc(dbUrl, "users", "user_id", userBounds[0], userBounds[1] + 1, partitions, props)
+                .select("user_id"));
+        AdsorptionRankJob.log("Loaded " + userIds.length + " users from users table");
+
+        // We don't use post_likes table anymore
+        AdsorptionRankJob.log("Skipping post_likes table as it doesn't exist");
+
+        // Load posts, comment edges (replies) and co-commenter edges from one partitioned scan of posts
+        long[] postBounds = bounds("posts", "post_id");
+        int[] postIds = new int[0];
+        JavaPairRDD<Integer, Integer> userPostComments = emptyPairs(spark);
+        JavaPairRDD<Integer, Integer> userUserFollows = emptyPairs(spark);
+        JavaPairRDD<Integer, Long> postHashtagKeys = emptyPairs(spark);
+        if (postBounds != null) {
+            Dataset<Row> posts = spark.read()
+                    .jdbc(dbUrl, "posts", "post_id", postBounds[0], postBounds[1] + 1, partitions, props)
+                    .select("post_id", "author_id", "parent_post", "hashtags")
+                    .persist(StorageLevel.MEMORY_AND_DISK());
+            postIds = collectInts(posts.select("post_id"));
+            Dataset<Row> replies = posts
+                    .filter(col("parent_post").isNotNull())
+                    .select("author_id", "parent_post", "post_id");
+            userPostComments = replies
+                    .javaRDD()
+                    .mapToPair(row -> new Tuple2<>(row.getInt(0), row.getInt(1)));
+            userUserFollows = coCommenterEdges(replies, config.getMaxCoCommenters());
+            postHashtagKeys = explodeHashtags(posts.select("post_id", "hashtags"))
+                    .union(readHashtagEdges(spark, POST_HASHTAGS_TABLE_QUERY, "post_id", postBounds,
+                            partitions, props, "post_hashtags"));
+        }
+        AdsorptionRankJob.log("Loaded " + postIds.length + " posts from posts table");
+
+        // Hashtag edges of users from the optional sources, and every hashtag id for the dictionary
+        JavaPairRDD<Integer, Long> userHashtagKeys = emptyPairs(spark);
+        if (userBounds != null) {
+            userHashtagKeys = readHashtagEdges(spark, USER_INTERESTS_COLUMN_QUERY, "user_id", userBounds,
+                    partitions, props, "users.interests")
+                    .union(readHashtagEdges(spark, USER_INTERESTS_TABLE_QUERY, "user_id", userBounds,
+                            partitions, props, "user_interests"));
+        }
+        postHashtagKeys = postHashtagKeys.persist(StorageLevel.MEMORY_AND_DISK());
+        userHashtagKeys = userHashtagKeys.persist(StorageLevel.MEMORY_AND_DISK());
+        JavaRDD<Long> hashtagKeys = postHashtagKeys.values().union(userHashtagKeys.values());
+        int[] hashtagIds = collectDistinct(hashtagKeys.map(HashtagDictionary::idOf));
+        AdsorptionRankJob.log("Loaded " + hashtagIds.length + " hashtags");
+
+        // Every partition interns its own tags, so tags that share an id are counted across all of them
+        long collisions = hashtagKeys.distinct().count() - hashtagIds.length;
+        if (collisions > 0) {
+            AdsorptionRankJob.log("Warning: " + collisions + " hashtags share an id with another");
+        }
+        JavaPairRDD<Integer, Integer> postHashtags = postHashtagKeys.mapValues(HashtagDictionary::idOf);
+        JavaPairRDD<Integer, Integer> userHashtags = userHashtagKeys.mapValues(HashtagDictionary::idOf);
+
+        return new DistributedGraphData(userIds, postIds, hashtagIds, emptyPairs(spark), userPostComments,
+                userUserFollows, postHashtags, userHashtags);
+    }
+
+    /**
+     * Co-commenter edges of (author_id, parent_post, post_id) reply rows
+     * Each thread's commenters are combined map-side up to the cap before the shuffle, so a
+     * viral thread sends at most capacity commenters per partition instead of all its replies.
+     */
+    private static JavaPairRDD<Integer, Integer> coCommenterEdges(Dataset<Row> replies, int capacity) {
+        return replies.javaRDD()
+                .mapToPair(row -> new Tuple2<>(row.getInt(1), new Tuple2<>(row.getInt(2), row.getInt(0))))
+                .aggregateByKey(new CoCommenters(capacity),
+                        (thread, reply) -> thread.offer(reply._1, reply._2),
+                        CoCommenters::merge)
+                .values()
+                .flatMapToPair(thread -> thread.edges().iterator());
+    }
+
+    /**
+     * (id, hashtag key) edges of an optional source, read with the partitioned JDBC source
+     * Empty, with a warning, if the query fails, e.g. because the table or column doesn't exist.
+     */
+    private JavaPairRDD<Integer, Long> readHashtagEdges(SparkSession spark, String query, String idColumn,
+                                                           long[] bounds, int partitions, Properties props,
+                                                           String source) {
+        try {
+            return explodeHashtags(spark.read()
+                    .jdbc(dbUrl, "(" + query + ") hashtag_source", idColumn,
+                            bounds[0], bounds[1] + 1, partitions, props));
+        } catch (Exception e) {
+            AdsorptionRankJob.log("Warning: Not reading hashtags from " + source + ": " + e.getMessage());
+            return emptyPairs(spark);
+        }
+    }
+
+    /**
+     * Parse (id, hashtag text) rows into (id, hashtag key) edges, streaming through each partition
+     * with a dictionary of its own; hashtag keys don't depend on the dictionary that interned them
+     */
+    private static JavaPairRDD<Integer, Long> explodeHashtags(Dataset<Row> rows) {
+        return rows.javaRDD().mapPartitionsToPair(partition -> {
+            HashtagDictionary hashtags = new HashtagDictionary();
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(partition, Spliterator.ORDERED), false)
+                    .filter(row -> !row.isNullAt(1))
+                    .flatMap(row -> Arrays.stream(hashtags.keys(row.getString(1)))
+                            .mapToObj(key -> new Tuple2<>(row.getInt(0), key)))
+                    .iterator();
+        });
+    }
+
+    /**
+     * Collect the distinct values of an RDD as one primitive array, one chunk per partition
+     */
+    private static int[] collectDistinct(JavaRDD<Integer> values) {
+        List<int[]> chunks = values.distinct()
+                .mapPartitions(partition -> {
+                    IntArrayBuilder ids = new IntArrayBuilder();
+                    partition.forEachRemaining(ids::add);
+                    return Collections.singletonList(ids.toArray()).iterator();
+                })
+                .collect();
+        return IntArrayBuilder.concat(chunks);
+    }
+
+    private static <V> JavaPairRDD<Integer, V> emptyPairs(SparkSession spark) {
+        JavaRDD<Tuple2<Integer, V>> empty = JavaSparkContext.fromSparkContext(spark.sparkContext()).emptyRDD();
+        return JavaPairRDD.fromJavaRDD(empty);
+    }
+
+    /**
+     * Collect a single int column as one primitive array, one chunk per partition
+     */
+    private static int[] collectInts(Dataset<Row> column) {
+        List<int[]> chunks = column.javaRDD()
+                .mapPartitions(rows -> {
+                    IntArrayBuilder ids = new IntArrayBuilder();
+                    rows.forEachRemaining(row -> ids.add(row.getInt(0)));
+                    return Collections.singletonList(ids.toArray()).iterator();
+                })
+                .collect();
+        return IntArrayBuilder.concat(chunks);
+    }
+
+    /**
+     * Growable int[] for collecting ids without boxing
+     */
+    static class IntArrayBuilder {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        static int[] concat(List<int[]> chunks) {
+            int total = 0;
+            for (int[] chunk : chunks) {
+                total += chunk.length;
+            }
+            int[] result = new int[total];
+            int offset = 0;
+            for (int[] chunk : chunks) {
+                System.arraycopy(chunk, 0, result, offset, chunk.length);
+                offset += chunk.length;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns hashtags to int ids, which serve as their "database ids" in the VertexDictionary
+ *
+ * Hashtags are stored as free text (posts.hashtags holds "#a,#b", "a b", "#A, #b"...),
+ * so every tag is normalized first: split on commas, whitespace and '#', lowercased.
+ * A tag's id is a hash of its normalized text, so range readers, Spark partitions and
+ * later runs all give the same tag the same id without sharing any state; that keeps
+ * hashtag vertices stable across snapshots. The intern table only saves re-hashing a
+ * tag that was seen before, remembers the text of each id for logging, and counts
+ * distinct tags that happen to share an id (they become one vertex). Dictionaries that
+ * don't see each other's tags, like those of Spark partitions, can count collisions
+ * between them from keys: an id with a second, independent hash of the tag, so two tags
+ * with the same id have different keys.
+ */
+public class HashtagDictionary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int[] NO_IDS = new int[0];
+    private static final long[] NO_KEYS = new long[0];
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> names = new ConcurrentHashMap<>();
+    private final AtomicInteger collisions = new AtomicInteger();
+
+    /**
+     * Distinct ids of the hashtags in a column value, interning new ones; empty for null
+     */
+    public int[] ids(String hashtags) {
+        long[] keys = keys(hashtags);
+        if (keys.length == 0) {
+            return NO_IDS;
+        }
+        // Keys are sorted by their id in the high bits
+        int[] result = new int[keys.length];
+        int distinct = 0;
+        for (long key : keys) {
+            int id = idOf(key);
+            if (distinct == 0 || result[distinct - 1] != id) {
+                result[distinct++] = id;
+            }
+        }
+        return distinct == result.length ? result : Arrays.copyOf(result, distinct);
+    }
+
+    /**
+     * Distinct keys of the hashtags in a column value, interning new ones; empty for null
+     */
+    public long[] keys(String hashtags) {
+        if (hashtags == null || hashtags.isEmpty()) {
+            return NO_KEYS;
+        }
+        long[] result = new long[4];
+        int count = 0;
+        int length = hashtags.length();
+        int start = 0;
+        while (start < length) {
+            while (start < length && isSeparator(hashtags.charAt(start))) {
+                start++;
+            }
+            int end = start;
+            while (end < length && !isSeparator(hashtags.charAt(end))) {
+                end++;
+            }
+            if (end > start) {
+                String tag = hashtags.substring(start, end).toLowerCase(Locale.ROOT);
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = key(intern(tag), tag);
+            }
+            start = end;
+        }
+        if (count == 0) {
+            return NO_KEYS;
+        }
+        Arrays.sort(result, 0, count);
+        int distinct = 1;
+        for (int i = 1; i < count; i++) {
+            if (result[i] != result[distinct - 1]) {
+                result[distinct++] = result[i];
+            }
+        }
+        return Arrays.copyOf(result, distinct);
+    }
+
+    /**
+     * Id of one already normalized hashtag
+     */
+    public int intern(String tag) {
+        Integer id = ids.get(tag);
+        if (id != null) {
+            return id;
+        }
+        int newId = id(tag);
+        if (ids.putIfAbsent(tag, newId) == null) {
+            String previous = names.putIfAbsent(newId, tag);
+            if (previous != null && !previous.equals(tag)) {
+                collisions.incrementAndGet();
+            }
+        }
+        return newId;
+    }
+
+    /**
+     * Text of an interned id, or null if no tag with that id was seen
+     */
+    public String name(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * Number of distinct hashtags interned
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Distinct hashtags that got the id of another one
+     */
+    public int collisions() {
+        return collisions.get();
+    }
+
+    /**
+     * Hashtag id of a key
+     */
+    public static int idOf(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static long key(int id, String tag) {
+        return ((long) id << 32) | (tag.hashCode() & 0xffffffffL);
+    }
+
+    /**
+     * 64-bit FNV-1a of the tag, folded to 32 bits
+     */
+    static int id(String tag) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < tag.length(); i++) {
+            hash ^= tag.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ',' || c == '#' || Character.isWhitespace(c);
+    }
+}
@@ -0,0 +1,130 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.util.StatCounter;
+import scala.Tuple2;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Vertices with so many out-edges that propagating from them would make one task straggle,
+ * and the slices their edges are split into
+ *
+ * In the RDD engine every edge of a source is processed by the task that holds the source,
+ * so a viral post with thousands of commenters keeps one core busy while the others wait.
+ * Each hot vertex's adjacency is cut into slices of at most threshold edges, and every slice
+ * is a sub-vertex with an id of its own past the end of the dictionary, so the partitioner
+ * spreads consecutive slices over different partitions. Every iteration the hot vertex's
+ * labels are copied to its slices, which propagate in parallel; their messages are keyed by
+ * the real targets, so the per-target aggregation recombines them like any other. Hot
+ * targets need nothing of the kind: messages are combined map-side, so a target receives at
+ * most one partial vector per partition whatever its in-degree.
+ */
+public class HotVertices implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Never split vertices with at most this many out-edges, however small the graph
+    static final int MIN_SPLIT_DEGREE = 1000;
+
+    // Hot vertex ids, sorted, and the first slice id of each (plus one past the last slice)
+    private final int[] vertices;
+    private final int[] firstSlice;
+
+    // Most edges per slice
+    private final int threshold;
+
+    private HotVertices(int[] vertices, int[] firstSlice, int threshold) {
+        this.vertices = vertices;
+        this.firstSlice = firstSlice;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Out-degree above which a vertex is split: the configured value if positive, none if
+     * negative, and otherwise the average edges per partition (at least MIN_SPLIT_DEGREE),
+     * so that no slice carries more than an average task's share of the edges
+     */
+    public static int threshold(StatCounter degrees, int partitions, int configured) {
+        if (configured != 0) {
+            return configured > 0 ? configured : Integer.MAX_VALUE;
+        }
+        long perPartition = (long) Math.ceil(degrees.sum() / partitions);
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_SPLIT_DEGREE, perPartition));
+    }
+
+    /**
+     * The vertices of edgeWeights with more than threshold out-edges, each split into at most
+     * partitions slices; slice ids start at firstId
+     */
+    public static HotVertices find(JavaPairRDD<Integer, Adjacency> edgeWeights, int threshold,
+                                   int partitions, int firstId) {
+        if (threshold == Integer.MAX_VALUE) {
+            return new HotVertices(new int[0], new int[] {firstId}, threshold);
+        }
+        List<Tuple2<Integer, Integer>> degrees = new ArrayList<>(edgeWeights
+                .filter(t -> t._2.size() > threshold)
+                .mapValues(Adjacency::size)
+                .collect());
+        degrees.sort((a, b) -> Integer.compare(a._1, b._1));
+
+        int[] vertices = new int[degrees.size()];
+        int[] firstSlice = new int[degrees.size() + 1];
+        firstSlice[0] = firstId;
+        for (int i = 0; i < degrees.size(); i++) {
+            vertices[i] = degrees.get(i)._1;
+            int slices = Math.min(partitions, (degrees.get(i)._2 + threshold - 1) / threshold);
+            firstSlice[i + 1] = firstSlice[i] + slices;
+        }
+        return new HotVertices(vertices, firstSlice, threshold);
+    }
+
+    public boolean isEmpty() {
+        return vertices.length == 0;
+    }
+
+    public int size() {
+        return vertices.length;
+    }
+
+    public int numSlices() {
+        return firstSlice[vertices.length] - firstSlice[0];
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public boolean contains(int vertex) {
+        return Arrays.binarySearch(vertices, vertex) >= 0;
+    }
+
+    /**
+     * A hot vertex's adjacency as (slice id, edges) pairs of near equal size
+     */
+    public List<Tuple2<Integer, Adjacency>> split(int vertex, Adjacency adjacency) {
+        int index = Arrays.binarySearch(vertices, vertex);
+        int slices = firstSlice[index + 1] - firstSlice[index];
+        List<Tuple2<Integer, Adjacency>> result = new ArrayList<>(slices);
+        for (int s = 0; s < slices; s++) {
+            int from = (int) ((long) adjacency.size() * s / slices);
+            int to = (int) ((long) adjacency.size() * (s + 1) / slices);
+            result.add(new Tuple2<>(firstSlice[index] + s, adjacency.slice(from, to)));
+        }
+        return result;
+    }
+
+    /**
+     * A hot vertex's labels, once for each of its slices
+     */
+    public List<Tuple2<Integer, LabelVector>> replicate(int vertex, LabelVector labels) {
+        int index = Arrays.binarySearch(vertices, vertex);
+        List<Tuple2<Integer, LabelVector>> result = new ArrayList<>(firstSlice[index + 1] - firstSlice[index]);
+        for (int slice = firstSlice[index]; slice < firstSlice[index + 1]; slice++) {
+            result.add(new Tuple2<>(slice, labels));
+        }
+        return result;
+    }
+}
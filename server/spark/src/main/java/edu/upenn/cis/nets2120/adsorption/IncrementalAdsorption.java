@@ -0,0 +1,124 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+/**
+ * Brings a previous run's converged labels up to date with the users, posts and
+ * comments added since, instead of recomputing every vertex from a cold start
+ *
+ * Only vertices whose in-edges changed are recomputed at first; from there the
+ * change is pushed along out-edges for as long as it stays above the convergence
+ * threshold (see CsrAdsorptionEngine.runFrontier). Deletes and changed user interests
+ * are not tracked, so a full run is still needed now and then to pick those up.
+ */
+public class IncrementalAdsorption {
+    private AdsorptionConfig config;
+    private final RunMetrics metrics;
+
+    public IncrementalAdsorption(AdsorptionConfig config, RunMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+    }
+
+    /**
+     * The config as planned for the merged graph by the last update
+     */
+    public AdsorptionConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Apply the delta loaded since previous.watermark and return the updated state
+     */
+    public AdsorptionState update(AdsorptionState previous, GraphData delta, long watermark) {
+        EdgeList coComments = CoCommenters.newEdges(previous.graph.userPostComments, delta.userPostComments,
+                config.getMaxCoCommenters());
+        GraphData graph = merge(previous.graph, delta, coComments);
+        VertexDictionary dictionary = VertexDictionary.build(graph);
+        CsrGraph outEdges = CsrGraph.fromGraphData(graph, dictionary);
+        CsrGraph inEdges = outEdges.transpose();
+        AdsorptionRankJob.log("Built CSR graph with " + inEdges.numVertices() + " vertices and "
+                + inEdges.numEdges() + " weighted edges, " + coComments.size() + " new co-commenter edges");
+        config = new ExecutionPlanner(config).planInMemory(ExecutionPlanner.Profile.of(dictionary, outEdges));
+
+        // Carry the converged labels over to the new vertex ids
+        LabelVector[] labels = previous.labelsFor(dictionary);
+
+        // Sources whose out-edges changed: new vertices and the endpoints of new edges
+        boolean[] dirty = new boolean[dictionary.size()];
+        for (int userId : delta.userIds) {
+            dirty[dictionary.encode(VertexType.USER, userId)] = true;
+        }
+        for (int postId : delta.postIds) {
+            dirty[dictionary.encode(VertexType.POST, postId)] = true;
+        }
+        markEndpoints(dirty, dictionary, delta.userPostComments, VertexType.USER, VertexType.POST);
+        markEndpoints(dirty, dictionary, coComments, VertexType.USER, VertexType.USER);
+        markEndpoints(dirty, dictionary, delta.postHashtags, VertexType.POST, VertexType.HASHTAG);
+        markEndpoints(dirty, dictionary, delta.userHashtags, VertexType.USER, VertexType.HASHTAG);
+
+        // Edge weights are normalized per source, so every out-neighbour of a changed source is affected
+        GraphLoader.IntArrayBuilder frontier = new GraphLoader.IntArrayBuilder();
+        boolean[] queued = new boolean[dictionary.size()];
+        for (int v = 0; v < dirty.length; v++) {
+            if (!dirty[v]) {
+                continue;
+            }
+            if (!queued[v]) {
+                queued[v] = true;
+                frontier.add(v);
+            }
+            for (int e = outEdges.rowStart(v); e < outEdges.rowEnd(v); e++) {
+                int target = outEdges.column(e);
+                if (!queued[target]) {
+                    queued[target] = true;
+                    frontier.add(target);
+                }
+            }
+        }
+        AdsorptionRankJob.log("Starting incremental adsorption from " + frontier.size() + " affected vertices");
+
+        LabelVector[] updated = new CsrAdsorptionEngine(config, metrics)
+                .runFrontier(outEdges, inEdges, labels, frontier.toArray(), dictionary);
+        return new AdsorptionState(graph, outEdges, dictionary, updated, watermark);
+    }
+
+    private static void markEndpoints(boolean[] dirty, VertexDictionary dictionary, EdgeList edges,
+                                      VertexType sourceType, VertexType targetType) {
+        for (int i = 0; i < edges.size(); i++) {
+            int source = dictionary.encode(sourceType, edges.source(i));
+            int target = dictionary.encode(targetType, edges.target(i));
+            if (source >= 0 && target >= 0) {
+                dirty[source] = true;
+                dirty[target] = true;
+            }
+        }
+    }
+
+    private static GraphData merge(GraphData previous, GraphData delta, EdgeList coComments) {
+        EdgeList likes = new EdgeList(previous.userPostLikes.size() + delta.userPostLikes.size());
+        likes.addAll(previous.userPostLikes);
+        likes.addAll(delta.userPostLikes);
+        EdgeList comments = new EdgeList(previous.userPostComments.size() + delta.userPostComments.size());
+        comments.addAll(previous.userPostComments);
+        comments.addAll(delta.userPostComments);
+        EdgeList follows = new EdgeList(previous.userUserFollows.size() + coComments.size());
+        follows.addAll(previous.userUserFollows);
+        follows.addAll(coComments);
+        EdgeList postHashtags = new EdgeList(previous.postHashtags.size() + delta.postHashtags.size());
+        postHashtags.addAll(previous.postHashtags);
+        postHashtags.addAll(delta.postHashtags);
+        EdgeList userHashtags = new EdgeList(previous.userHashtags.size() + delta.userHashtags.size());
+        userHashtags.addAll(previous.userHashtags);
+        userHashtags.addAll(delta.userHashtags);
+        // Hashtags already in the graph come up again in the delta; the dictionary drops duplicates
+        return new GraphData(concat(previous.userIds, delta.userIds), concat(previous.postIds, delta.postIds),
+                concat(previous.hashtagIds, delta.hashtagIds),
+                likes, comments, follows, postHashtags, userHashtags);
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -0,0 +1,347 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+/**
+ * Sparse label distribution of a vertex: label ids kept sorted in an int[],
+ * with their weights in a parallel double[]
+ *
+ * Replaces HashMap&lt;String, Double&gt; during propagation. The mutating operations
+ * (addScaled, set, scale) work in place and only reallocate when the arrays run
+ * out of capacity, so a reduce that folds many vectors into one allocates
+ * O(log n) times instead of once per entry.
+ */
+public class LabelVector implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int[] NO_LABELS = new int[0];
+    private static final double[] NO_WEIGHTS = new double[0];
+
+    private int[] labels;
+    private double[] weights;
+    private int size;
+
+    /**
+     * Empty vector; public no-arg constructor is also required by Externalizable
+     */
+    public LabelVector() {
+        this.labels = NO_LABELS;
+        this.weights = NO_WEIGHTS;
+    }
+
+    public LabelVector(int capacity) {
+        this.labels = new int[capacity];
+        this.weights = new double[capacity];
+    }
+
+    /**
+     * Vector over the first size entries of the given arrays, which it takes ownership of
+     * Labels must already be sorted; used by deserializers to avoid a copy.
+     */
+    LabelVector(int[] labels, double[] weights, int size) {
+        this.labels = labels;
+        this.weights = weights;
+        this.size = size;
+    }
+
+    /**
+     * Vector holding a single label
+     */
+    public static LabelVector of(int label, double weight) {
+        LabelVector vector = new LabelVector(1);
+        vector.labels[0] = label;
+        vector.weights[0] = weight;
+        vector.size = 1;
+        return vector;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Label id at position i, in increasing label order
+     */
+    public int labelAt(int i) {
+        return labels[i];
+    }
+
+    public double weightAt(int i) {
+        return weights[i];
+    }
+
+    /**
+     * Weight of a label, or 0 if absent
+     */
+    public double get(int label) {
+        int i = Arrays.binarySearch(labels, 0, size, label);
+        return i < 0 ? 0.0 : weights[i];
+    }
+
+    public boolean contains(int label) {
+        return Arrays.binarySearch(labels, 0, size, label) >= 0;
+    }
+
+    /**
+     * Set the weight of a label, inserting it if absent
+     */
+    public LabelVector set(int label, double weight) {
+        int i = Arrays.binarySearch(labels, 0, size, label);
+        if (i >= 0) {
+            weights[i] = weight;
+            return this;
+        }
+        int insertAt = -i - 1;
+        ensureCapacity(size + 1);
+        System.arraycopy(labels, insertAt, labels, insertAt + 1, size - insertAt);
+        System.arraycopy(weights, insertAt, weights, insertAt + 1, size - insertAt);
+        labels[insertAt] = label;
+        weights[insertAt] = weight;
+        size++;
+        return this;
+    }
+
+    /**
+     * Multiply every weight by factor, in place
+     */
+    public LabelVector scale(double factor) {
+        for (int i = 0; i < size; i++) {
+            weights[i] *= factor;
+        }
+        return this;
+    }
+
+    /**
+     * this += factor * other, in place
+     *
+     * Merges backwards into the tail of the (grown if needed) arrays so the
+     * merge never overwrites entries it has not read yet, then closes the gap
+     * left by labels present in both vectors.
+     */
+    public LabelVector addScaled(LabelVector other, double factor) {
+        if (other.size == 0) {
+            return this;
+        }
+        int total = size + other.size;
+        ensureCapacity(total);
+
+        int i = size - 1;
+        int j = other.size - 1;
+        int out = total - 1;
+        while (j >= 0) {
+            if (i >= 0 && labels[i] > other.labels[j]) {
+                labels[out] = labels[i];
+                weights[out] = weights[i];
+                i--;
+            } else if (i >= 0 && labels[i] == other.labels[j]) {
+                labels[out] = labels[i];
+                weights[out] = weights[i] + factor * other.weights[j];
+                i--;
+                j--;
+            } else {
+                labels[out] = other.labels[j];
+                weights[out] = factor * other.weights[j];
+                j--;
+            }
+            out--;
+        }
+        // Entries 0..i of this vector are already in place; shift the merged tail down to meet them
+        int gap = out - i;
+        if (gap > 0) {
+            System.arraycopy(labels, out + 1, labels, i + 1, total - out - 1);
+            System.arraycopy(weights, out + 1, weights, i + 1, total - out - 1);
+        }
+        size = total - gap;
+        return this;
+    }
+
+    /**
+     * this += other, in place
+     */
+    public LabelVector add(LabelVector other) {
+        return addScaled(other, 1.0);
+    }
+
+    /**
+     * Independent copy with every weight multiplied by factor
+     */
+    public LabelVector scaledCopy(double factor) {
+        LabelVector copy = new LabelVector(size);
+        System.arraycopy(labels, 0, copy.labels, 0, size);
+        for (int i = 0; i < size; i++) {
+            copy.weights[i] = weights[i] * factor;
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    public LabelVector copy() {
+        return scaledCopy(1.0);
+    }
+
+    /**
+     * Copy with every label id replaced by mapping[label], dropping labels that map to -1
+     * The mapping must be increasing on the labels it keeps, so the copy stays sorted;
+     * this holds when translating user vertex ids between two dictionaries.
+     */
+    public LabelVector remap(int[] mapping) {
+        LabelVector copy = new LabelVector(size);
+        for (int i = 0; i < size; i++) {
+            int label = labels[i] < mapping.length ? mapping[labels[i]] : -1;
+            if (label >= 0) {
+                copy.labels[copy.size] = label;
+                copy.weights[copy.size] = weights[i];
+                copy.size++;
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Sum of all weights
+     */
+    public double totalWeight() {
+        double total = 0.0;
+        for (int i = 0; i < size; i++) {
+            total += weights[i];
+        }
+        return total;
+    }
+
+    /**
+     * Drop labels below epsilon, then keep only the topK heaviest, in place
+     * The surviving weights are rescaled so the vector keeps its total mass.
+     * A topK or epsilon of 0 disables that step.
+     *
+     * @return the weight that was removed before rescaling
+     */
+    public double prune(int topK, double epsilon) {
+        double total = totalWeight();
+
+        // Weight a label needs to survive; entries exactly at the top-K cutoff are kept in label order
+        double cutoff = epsilon;
+        int tiesAllowed = Integer.MAX_VALUE;
+        if (topK > 0 && size > topK) {
+            double[] sorted = Arrays.copyOf(weights, size);
+            Arrays.sort(sorted);
+            double kth = sorted[size - topK];
+            if (kth >= cutoff) {
+                cutoff = kth;
+                tiesAllowed = 0;
+                for (int i = size - topK; i < size && sorted[i] == kth; i++) {
+                    tiesAllowed++;
+                }
+            }
+        }
+
+        int kept = 0;
+        double keptWeight = 0.0;
+        for (int i = 0; i < size; i++) {
+            double w = weights[i];
+            if (w > cutoff || (w == cutoff && tiesAllowed-- > 0)) {
+                labels[kept] = labels[i];
+                weights[kept] = w;
+                keptWeight += w;
+                kept++;
+            }
+        }
+        size = kept;
+
+        double prunedWeight = total - keptWeight;
+        if (prunedWeight > 0 && keptWeight > 0) {
+            scale(total / keptWeight);
+        }
+        return prunedWeight;
+    }
+
+    /**
+     * Largest absolute difference of any label weight between two vectors
+     */
+    public static double maxAbsDiff(LabelVector a, LabelVector b) {
+        double maxDiff = 0.0;
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            double diff;
+            if (j >= b.size || (i < a.size && a.labels[i] < b.labels[j])) {
+                diff = a.weights[i++];
+            } else if (i >= a.size || b.labels[j] < a.labels[i]) {
+                diff = b.weights[j++];
+            } else {
+                diff = a.weights[i++] - b.weights[j++];
+            }
+            maxDiff = Math.max(maxDiff, Math.abs(diff));
+        }
+        return maxDiff;
+    }
+
+    /**
+     * Sum of absolute label weight differences between two vectors
+     */
+    public static double l1Diff(LabelVector a, LabelVector b) {
+        double total = 0.0;
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j >= b.size || (i < a.size && a.labels[i] < b.labels[j])) {
+                total += Math.abs(a.weights[i++]);
+            } else if (i >= a.size || b.labels[j] < a.labels[i]) {
+                total += Math.abs(b.weights[j++]);
+            } else {
+                total += Math.abs(a.weights[i++] - b.weights[j++]);
+            }
+        }
+        return total;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > labels.length) {
+            int newCapacity = Math.max(capacity, labels.length * 2);
+            labels = Arrays.copyOf(labels, newCapacity);
+            weights = Arrays.copyOf(weights, newCapacity);
+        }
+    }
+
+    /**
+     * Only the live prefix of the arrays is written; spare capacity never reaches the shuffle
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeInt(labels[i]);
+            out.writeDouble(weights[i]);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        size = in.readInt();
+        labels = new int[size];
+        weights = new double[size];
+        for (int i = 0; i < size; i++) {
+            labels[i] = in.readInt();
+            weights[i] = in.readDouble();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(labels[i]).append('=').append(weights[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
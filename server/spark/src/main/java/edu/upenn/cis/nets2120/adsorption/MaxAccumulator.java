@@ -0,0 +1,61 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.apache.spark.util.AccumulatorV2;
+
+/**
+ * Accumulator that keeps the largest value added to it
+ * Used to track the maximum label change of an iteration without a separate reduce job
+ */
+public class MaxAccumulator extends AccumulatorV2<Double, Double> {
+    private static final long serialVersionUID = 1L;
+
+    private double max = 0.0;
+    private boolean empty = true;
+
+    @Override
+    public boolean isZero() {
+        return empty;
+    }
+
+    @Override
+    public AccumulatorV2<Double, Double> copy() {
+        MaxAccumulator copy = new MaxAccumulator();
+        copy.max = max;
+        copy.empty = empty;
+        return copy;
+    }
+
+    @Override
+    public void reset() {
+        max = 0.0;
+        empty = true;
+    }
+
+    @Override
+    public void add(Double value) {
+        add(value.doubleValue());
+    }
+
+    /**
+     * Primitive overload so hot loops don't box
+     */
+    public void add(double value) {
+        if (empty || value > max) {
+            max = value;
+        }
+        empty = false;
+    }
+
+    @Override
+    public void merge(AccumulatorV2<Double, Double> other) {
+        MaxAccumulator o = (MaxAccumulator) other;
+        if (!o.empty) {
+            add(o.max);
+        }
+    }
+
+    @Override
+    public Double value() {
+        return max;
+    }
+}
@@ -0,0 +1,226 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Approximate adsorption by Monte Carlo random walks with restart, for graphs whose
+ * user count outgrows exact propagation
+ *
+ * Adsorption's label of user u at post p is the weight of all paths from u to p, which
+ * is what a walk that starts at u and follows out-edges in proportion to their weight
+ * samples. Every user runs walksPerUser walks over the same weighted out-edges as the
+ * exact engines; each walk ends with probability restartProbability after every step,
+ * at a vertex without out-edges, or after walkLength steps. A post's affinity is the
+ * number of visits per walk, and the user keeps the top N. The cost is users x walks x
+ * steps whatever the size of the graph around them, and no label vectors are held at
+ * all. More walks give a closer ranking; a higher restart probability keeps walks
+ * nearer the user, like fewer adsorption iterations. Each user's walks are seeded from
+ * walkSeed and the user id, so a run is reproducible for any number of threads.
+ */
+public class RandomWalkAdsorption {
+    // Don't split user ranges smaller than this into separate tasks
+    private static final int MIN_TASK_USERS = 64;
+
+    private final AdsorptionConfig config;
+
+    // Where the walk stage is recorded
+    private final RunMetrics metrics;
+
+    public RandomWalkAdsorption(AdsorptionConfig config, RunMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Every user's top posts by estimated affinity, keyed by user vertex id
+     */
+    public List<Tuple2<Integer, TopPosts>> recommend(CsrGraph outEdges, VertexDictionary dictionary) {
+        RunMetrics.Stage stage = metrics.start(RunMetrics.WALK);
+        double[] cumulative = cumulativeWeights(outEdges);
+        int users = dictionary.count(VertexType.USER);
+        TopPosts[] byUser = new TopPosts[users];
+
+        int threads = config.getThreads() > 0 ? config.getThreads() : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long steps;
+        try {
+            int grain = Math.max(MIN_TASK_USERS, users / (threads * 8));
+            steps = pool.invoke(new WalkTask(outEdges, cumulative, dictionary, byUser, 0, users, grain));
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Tuple2<Integer, TopPosts>> result = new ArrayList<>();
+        for (int user = 0; user < users; user++) {
+            if (byUser[user] != null && byUser[user].size() > 0) {
+                result.add(new Tuple2<>(user, byUser[user]));
+            }
+        }
+        stage.records(steps).finish();
+        AdsorptionRankJob.log("Ran " + config.getWalksPerUser() + " walks for each of " + users + " users ("
+                + steps + " steps), " + result.size() + " users reached a post");
+        return result;
+    }
+
+    /**
+     * Mean share of each user's exact top posts that the approximate top posts also contain
+     * Users without exact recommendations are skipped.
+     */
+    public static double overlap(List<Tuple2<Integer, TopPosts>> approximate,
+                                 List<Tuple2<Integer, TopPosts>> exact) {
+        Map<Integer, TopPosts> approximateByUser = new HashMap<>();
+        for (Tuple2<Integer, TopPosts> user : approximate) {
+            approximateByUser.put(user._1, user._2);
+        }
+
+        double total = 0.0;
+        int users = 0;
+        for (Tuple2<Integer, TopPosts> user : exact) {
+            TopPosts expected = user._2;
+            if (expected.size() == 0) {
+                continue;
+            }
+            TopPosts found = approximateByUser.get(user._1);
+            int matches = 0;
+            if (found != null) {
+                for (int i = 0; i < expected.size(); i++) {
+                    for (int j = 0; j < found.size(); j++) {
+                        if (found.postAt(j) == expected.postAt(i)) {
+                            matches++;
+                            break;
+                        }
+                    }
+                }
+            }
+            total += (double) matches / expected.size();
+            users++;
+        }
+        return users == 0 ? 1.0 : total / users;
+    }
+
+    /**
+     * Running sum of each vertex's out-edge weights, so a step is a binary search in its row
+     */
+    private static double[] cumulativeWeights(CsrGraph outEdges) {
+        double[] cumulative = new double[outEdges.numEdges()];
+        for (int v = 0; v < outEdges.numVertices(); v++) {
+            double sum = 0.0;
+            for (int e = outEdges.rowStart(v); e < outEdges.rowEnd(v); e++) {
+                sum += outEdges.value(e);
+                cumulative[e] = sum;
+            }
+        }
+        return cumulative;
+    }
+
+    /**
+     * Walks from every user in [from, to), splitting the range until it is small enough
+     * Returns the number of steps taken.
+     */
+    private class WalkTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final CsrGraph outEdges;
+        private final double[] cumulative;
+        private final VertexDictionary dictionary;
+        private final TopPosts[] byUser;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        WalkTask(CsrGraph outEdges, double[] cumulative, VertexDictionary dictionary, TopPosts[] byUser,
+                 int from, int to, int grain) {
+            this.outEdges = outEdges;
+            this.cumulative = cumulative;
+            this.dictionary = dictionary;
+            this.byUser = byUser;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                WalkTask left = new WalkTask(outEdges, cumulative, dictionary, byUser, from, mid, grain);
+                WalkTask right = new WalkTask(outEdges, cumulative, dictionary, byUser, mid, to, grain);
+                left.fork();
+                long rightSteps = right.compute();
+                return left.join() + rightSteps;
+            }
+
+            int walks = config.getWalksPerUser();
+            int walkLength = config.getWalkLength();
+            double restart = config.getRestartProbability();
+            int firstPost = dictionary.offset(VertexType.POST);
+            int endPost = firstPost + dictionary.count(VertexType.POST);
+
+            // Visit counts per post, reset through the list of posts touched by the current user
+            int[] visits = new int[endPost - firstPost];
+            long steps = 0;
+
+            for (int user = from; user < to; user++) {
+                SplittableRandom random = new SplittableRandom(config.getWalkSeed() * 0x9E3779B97F4A7C15L + user);
+                GraphLoader.IntArrayBuilder touched = new GraphLoader.IntArrayBuilder();
+                for (int w = 0; w < walks; w++) {
+                    int v = user;
+                    for (int step = 0; step < walkLength; step++) {
+                        v = next(v, random);
+                        if (v < 0) {
+                            break;
+                        }
+                        steps++;
+                        if (v >= firstPost && v < endPost && visits[v - firstPost]++ == 0) {
+                            touched.add(v - firstPost);
+                        }
+                        if (random.nextDouble() < restart) {
+                            break;
+                        }
+                    }
+                }
+
+                if (touched.size() > 0) {
+                    TopPosts top = new TopPosts(config.getTopN());
+                    for (int post : touched.toArray()) {
+                        top.offer(firstPost + post, (double) visits[post] / walks);
+                        visits[post] = 0;
+                    }
+                    byUser[user] = top;
+                }
+            }
+            return steps;
+        }
+
+        /**
+         * Out-neighbour of v picked in proportion to edge weight, or -1 if v has no out-edges
+         */
+        private int next(int v, SplittableRandom random) {
+            int start = outEdges.rowStart(v);
+            int end = outEdges.rowEnd(v);
+            if (start == end) {
+                return -1;
+            }
+            double r = random.nextDouble() * cumulative[end - 1];
+            int lo = start;
+            int hi = end - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cumulative[mid] <= r) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return outEdges.column(lo);
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import scala.Tuple2;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes recommendations, either as the rows that changed since the last run or by
+ * filling a staging table and swapping it in
+ *
+ * Most users' top posts and scores are the same from one run to the next, so by default
+ * only the difference is written. Every user's published list has a fingerprint in a side
+ * table; a user whose new list has the same fingerprint costs one stamp of the run id, and
+ * only the others have their published rows read back and compared, so the inserts, score
+ * updates and deletes go to recommendedPosts and the binlog, and nothing else does. Each
+ * batch of users changes its rows and fingerprints in one transaction, so the feed sees a
+ * user's old list or new list, never a mix. Once every user is written, publish() deletes
+ * the rows of users this run didn't stamp.
+ *
+ * With differentialWrite off, feed queries keep reading the previous recommendedPosts
+ * until one atomic RENAME TABLE replaces it with the fully written staging table, so they
+ * never see an empty or half-written table and don't contend with the bulk insert.
+ *
+ * The writer is serializable so the Spark engines can write from their executors,
+ * one partition per task. Every JVM writes on at most writeConnections connections at
+ * once, so further tasks wait for one instead of opening more; a finished partition
+ * leaves its connection to the tasks still writing, and the last one closes them all,
+ * so an executor holds no connections between jobs. Rows are encoded into the next
+ * batch on the calling thread while a writer thread sends the previous one, so scoring
+ * and database round trips overlap. Every batch commits on its own and writing it again
+ * changes nothing, so a Spark task that is retried after a partial write just writes it
+ * again.
+ */
+public class RecommendationWriter implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String TABLE = "recommendedPosts";
+    public static final String STAGING_TABLE = "recommendedPosts_staging";
+    public static final String FINGERPRINT_TABLE = "recommendedPosts_fingerprints";
+    private static final String OLD_TABLE = "recommendedPosts_old";
+
+    // Encoded batches that may wait for the writer thread
+    private static final int QUEUED_BATCHES = 2;
+
+    // Connection pools of this JVM by database, user and size
+    private static final Map<String, Pool> POOLS = new ConcurrentHashMap<>();
+
+    private static final String TABLE_COLUMNS = " (" +
+            "user_id INT NOT NULL, " +
+            "post_id INT NOT NULL, " +
+            "score INT, " +
+            "PRIMARY KEY (user_id, post_id), " +
+            "FOREIGN KEY (user_id) REFERENCES users(user_id), " +
+            "FOREIGN KEY (post_id) REFERENCES posts(post_id)" +
+            ")";
+
+    // Fingerprint of every user's published (post, score) list, and the last run that wrote or confirmed it
+    private static final String FINGERPRINT_COLUMNS = " (" +
+            "user_id INT NOT NULL PRIMARY KEY, " +
+            "fingerprint BIGINT NOT NULL, " +
+            "run_id BIGINT NOT NULL" +
+            ")";
+
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final int batchSize;
+    private final boolean differential;
+
+    // Most connections writing at once per JVM
+    private final int poolSize;
+
+    // Stamped on the fingerprint of every user this run writes
+    private final long runId;
+
+    public RecommendationWriter(String dbUrl, String dbUser, String dbPassword, AdsorptionConfig config) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        this.batchSize = Math.max(1, config.getWriteBatchSize());
+        this.differential = config.isDifferentialWrite();
+        this.poolSize = Math.max(1, config.getWriteConnections());
+        this.runId = System.currentTimeMillis();
+    }
+
+    public boolean isDifferential() {
+        return differential;
+    }
+
+    /**
+     * Open a connection tuned for bulk inserts
+     * With MySQL Connector/J, rewriteBatchedStatements turns each JDBC batch into
+     * multi-row INSERTs instead of one round trip per row.
+     */
+    public Connection connect() throws SQLException {
+        Properties props = new Properties();
+        props.setProperty("user", dbUser);
+        props.setProperty("password", dbPassword);
+        if (dbUrl.startsWith("jdbc:mysql:")) {
+            props.setProperty("rewriteBatchedStatements", "true");
+        }
+        return DriverManager.getConnection(dbUrl, props);
+    }
+
+    /**
+     * Score stored for a label weight (1-100)
+     */
+    public static int score(double weight) {
+        return Math.max(1, (int)(weight * 100));
+    }
+
+    /**
+     * Create the tables this run writes to: recommendedPosts and its fingerprints when only
+     * the changes are written, otherwise a new empty staging table
+     */
+    public void prepare() throws SQLException {
+        if (differential) {
+            try (Connection conn = connect(); Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE + TABLE_COLUMNS);
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + FINGERPRINT_TABLE + FINGERPRINT_COLUMNS);
+            }
+        } else {
+            createStagingTable();
+        }
+    }
+
+    /**
+     * Recreate an empty staging table with the live table's schema
+     */
+    public void createStagingTable() throws SQLException {
+        try (Connection conn = connect(); Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS " + STAGING_TABLE);
+            stmt.executeUpdate("CREATE TABLE " + STAGING_TABLE + TABLE_COLUMNS);
+        }
+    }
+
+    /**
+     * Write users' top posts on a connection from this JVM's pool, waiting for one if
+     * poolSize partitions are being written already
+     *
+     * @return number of rows inserted, updated or deleted
+     */
+    public long write(Iterator<Tuple2<Integer, TopPosts>> recommendations,
+                      VertexDictionary dictionary) throws SQLException {
+        Pool pool = POOLS.computeIfAbsent(dbUrl + "|" + dbUser + "|" + poolSize, key -> new Pool(poolSize));
+        Connection conn = pool.acquire(this);
+        boolean reusable = false;
+        try {
+            long rows = write(conn, recommendations, dictionary);
+            reusable = true;
+            return rows;
+        } finally {
+            pool.release(conn, reusable);
+        }
+    }
+
+    /**
+     * Connections of one database in this JVM: a permit for each one in use, and the idle
+     * ones left by finished partitions until no partition is writing any more
+     */
+    private static class Pool {
+        private final Semaphore permits;
+        private final Deque<Connection> idle = new ArrayDeque<>();
+        private int active;
+
+        Pool(int size) {
+            permits = new Semaphore(size, true);
+        }
+
+        Connection acquire(RecommendationWriter writer) throws SQLException {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection", e);
+            }
+            try {
+                Connection conn;
+                synchronized (this) {
+                    active++;
+                    conn = idle.poll();
+                }
+                while (conn != null && !conn.isValid(5)) {
+                    closeQuietly(conn);
+                    synchronized (this) {
+                        conn = idle.poll();
+                    }
+                }
+                return conn != null ? conn : writer.connect();
+            } catch (SQLException | RuntimeException e) {
+                release(null, false);
+                throw e;
+            }
+        }
+
+        void release(Connection conn, boolean reusable) {
+            List<Connection> closing = new ArrayList<>();
+            synchronized (this) {
+                active--;
+                if (conn != null) {
+                    if (reusable) {
+                        idle.push(conn);
+                    } else {
+                        closing.add(conn);
+                    }
+                }
+                if (active == 0) {
+                    closing.addAll(idle);
+                    idle.clear();
+                }
+            }
+            for (Connection c : closing) {
+                closeQuietly(c);
+            }
+            permits.release();
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // Already broken, nothing left to release
+        }
+    }
+
+    /**
+     * Write users' top posts, decoding vertex ids to database ids: the changes to
+     * recommendedPosts, or every row into the staging table
+     * Rows are encoded into batches on this thread and written by a writer thread, one
+     * transaction per batch. A user's rows are never split between two batches.
+     *
+     * @return number of rows inserted, updated or deleted
+     */
+    public long write(Connection conn, Iterator<Tuple2<Integer, TopPosts>> recommendations,
+                      VertexDictionary dictionary) throws SQLException {
+        BatchWriter writer = differential ? this::applyChanges : RecommendationWriter::insert;
+        BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        ExecutorService io = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "recommendation-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Future<Long> written = io.submit(() -> drain(conn, batches, writer));
+            Batch batch = new Batch(batchSize);
+            while (recommendations.hasNext()) {
+                Tuple2<Integer, TopPosts> userRecommendations = recommendations.next();
+                List<Tuple2<Integer, Double>> posts = userRecommendations._2.sorted();
+                if (!batch.fits(posts.size())) {
+                    if (batch.userCount > 0) {
+                        hand(batches, batch, written);
+                    }
+                    batch = new Batch(Math.max(batchSize, posts.size()));
+                }
+
+                int userId = dictionary.rawId(userRecommendations._1);
+                for (Tuple2<Integer, Double> post : posts) {
+                    batch.add(userId, dictionary.rawId(post._1), score(post._2));
+                }
+                batch.endUser(userId);
+            }
+            if (batch.userCount > 0) {
+                hand(batches, batch, written);
+            }
+            hand(batches, Batch.END, written);
+            return written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while writing recommendations", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Error writing recommendations: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            io.shutdownNow();
+        }
+    }
+
+    /**
+     * Queue a batch for the writer thread, failing instead of waiting if the writer has stopped
+     */
+    private static void hand(BlockingQueue<Batch> batches, Batch batch, Future<Long> written)
+            throws InterruptedException, ExecutionException {
+        while (!batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (written.isDone()) {
+                written.get();
+                throw new ExecutionException(new SQLException("Recommendation writer stopped early"));
+            }
+        }
+    }
+
+    /**
+     * Writer thread: write and commit batches until the end marker
+     */
+    private static long drain(Connection conn, BlockingQueue<Batch> batches, BatchWriter writer)
+            throws SQLException, InterruptedException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        long totalWritten = 0;
+        try {
+            for (Batch batch = batches.take(); batch != Batch.END; batch = batches.take()) {
+                totalWritten += writer.write(conn, batch);
+                conn.commit();
+            }
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return totalWritten;
+    }
+
+    /**
+     * Writes one batch in the writer thread's open transaction
+     */
+    private interface BatchWriter {
+        /**
+         * @return number of rows inserted, updated or deleted
+         */
+        long write(Connection conn, Batch batch) throws SQLException;
+    }
+
+    /**
+     * Insert every row of a batch into the staging table
+     */
+    private static long insert(Connection conn, Batch batch) throws SQLException {
+        try (PreparedStatement insertStmt = conn.prepareStatement(
+                "INSERT INTO " + STAGING_TABLE + " (user_id, post_id, score) VALUES (?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE score = VALUES(score)")) {
+            for (int i = 0; i < batch.size; i++) {
+                insertStmt.setInt(1, batch.users[i]);
+                insertStmt.setInt(2, batch.posts[i]);
+                insertStmt.setInt(3, batch.scores[i]);
+                insertStmt.addBatch();
+            }
+            insertStmt.executeBatch();
+        }
+        return batch.size;
+    }
+
+    /**
+     * Bring the published rows of a batch's users in line with the batch
+     * Users whose fingerprint matches are only stamped with this run. For the others the
+     * published rows are read back: new posts and changed scores are upserted, posts no longer
+     * in the list are deleted, and the new fingerprint is stored.
+     */
+    private long applyChanges(Connection conn, Batch batch) throws SQLException {
+        Map<Integer, Long> published = new HashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT user_id, fingerprint FROM "
+                + FINGERPRINT_TABLE + " WHERE user_id IN " + placeholders(batch.userCount))) {
+            setInts(stmt, 1, batch.userIds, batch.userCount);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    published.put(rs.getInt(1), rs.getLong(2));
+                }
+            }
+        }
+
+        // Batch indexes of the users whose list changed, and ids of the users whose list didn't
+        int[] changed = new int[batch.userCount];
+        int changedCount = 0;
+        int[] unchanged = new int[batch.userCount];
+        int unchangedCount = 0;
+        for (int u = 0; u < batch.userCount; u++) {
+            Long fingerprint = published.get(batch.userIds[u]);
+            if (fingerprint != null && fingerprint == batch.fingerprints[u]) {
+                unchanged[unchangedCount++] = batch.userIds[u];
+            } else {
+                changed[changedCount++] = u;
+            }
+        }
+        if (unchangedCount > 0) {
+            try (PreparedStatement stamp = conn.prepareStatement("UPDATE " + FINGERPRINT_TABLE
+                    + " SET run_id = ? WHERE user_id IN " + placeholders(unchangedCount))) {
+                stamp.setLong(1, runId);
+                setInts(stamp, 2, unchanged, unchangedCount);
+                stamp.executeUpdate();
+            }
+        }
+        if (changedCount == 0) {
+            return 0;
+        }
+
+        // Published scores of the changed users by (user, post); what the batch doesn't match is deleted
+        int[] changedIds = new int[changedCount];
+        for (int i = 0; i < changedCount; i++) {
+            changedIds[i] = batch.userIds[changed[i]];
+        }
+        Map<Long, Integer> previous = new HashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT user_id, post_id, score FROM "
+                + TABLE + " WHERE user_id IN " + placeholders(changedCount))) {
+            setInts(stmt, 1, changedIds, changedCount);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    previous.put(rowKey(rs.getInt(1), rs.getInt(2)), rs.getInt(3));
+                }
+            }
+        }
+
+        long rows = 0;
+        try (PreparedStatement delete = conn.prepareStatement(
+                     "DELETE FROM " + TABLE + " WHERE user_id = ? AND post_id = ?");
+             PreparedStatement upsert = conn.prepareStatement(
+                     "INSERT INTO " + TABLE + " (user_id, post_id, score) VALUES (?, ?, ?) " +
+                     "ON DUPLICATE KEY UPDATE score = VALUES(score)");
+             PreparedStatement fingerprint = conn.prepareStatement(
+                     "INSERT INTO " + FINGERPRINT_TABLE + " (user_id, fingerprint, run_id) VALUES (?, ?, ?) " +
+                     "ON DUPLICATE KEY UPDATE fingerprint = VALUES(fingerprint), run_id = VALUES(run_id)")) {
+            for (int i = 0; i < changedCount; i++) {
+                int u = changed[i];
+                for (int r = batch.userStart(u); r < batch.userEnds[u]; r++) {
+                    Integer score = previous.remove(rowKey(batch.users[r], batch.posts[r]));
+                    if (score == null || score != batch.scores[r]) {
+                        upsert.setInt(1, batch.users[r]);
+                        upsert.setInt(2, batch.posts[r]);
+                        upsert.setInt(3, batch.scores[r]);
+                        upsert.addBatch();
+                        rows++;
+                    }
+                }
+                fingerprint.setInt(1, batch.userIds[u]);
+                fingerprint.setLong(2, batch.fingerprints[u]);
+                fingerprint.setLong(3, runId);
+                fingerprint.addBatch();
+            }
+            for (long key : previous.keySet()) {
+                delete.setInt(1, (int) (key >>> 32));
+                delete.setInt(2, (int) key);
+                delete.addBatch();
+                rows++;
+            }
+            delete.executeBatch();
+            upsert.executeBatch();
+            fingerprint.executeBatch();
+        }
+        return rows;
+    }
+
+    private static long rowKey(int user, int post) {
+        return ((long) user << 32) | (post & 0xffffffffL);
+    }
+
+    private static String placeholders(int count) {
+        return "(" + String.join(", ", Collections.nCopies(count, "?")) + ")";
+    }
+
+    private static void setInts(PreparedStatement stmt, int first, int[] values, int count) throws SQLException {
+        for (int i = 0; i < count; i++) {
+            stmt.setInt(first + i, values[i]);
+        }
+    }
+
+    /**
+     * Encoded rows of one JDBC batch, grouped by user
+     */
+    private static class Batch {
+        static final Batch END = new Batch(0);
+
+        final int[] users;
+        final int[] posts;
+        final int[] scores;
+        int size;
+
+        // Users in the batch, where each one's rows end, and the fingerprint of those rows
+        final int[] userIds;
+        final int[] userEnds;
+        final long[] fingerprints;
+        int userCount;
+
+        Batch(int capacity) {
+            users = new int[capacity];
+            posts = new int[capacity];
+            scores = new int[capacity];
+            userIds = new int[capacity];
+            userEnds = new int[capacity];
+            fingerprints = new long[capacity];
+        }
+
+        void add(int user, int post, int score) {
+            users[size] = user;
+            posts[size] = post;
+            scores[size] = score;
+            size++;
+        }
+
+        /**
+         * Close the list of the user whose rows were added last
+         * The fingerprint sums a hash of every (post, score), so it doesn't depend on the
+         * order of posts with equal weights.
+         */
+        void endUser(int user) {
+            long fingerprint = 0;
+            for (int i = userStart(userCount); i < size; i++) {
+                fingerprint += mix(rowKey(posts[i], scores[i]));
+            }
+            userIds[userCount] = user;
+            userEnds[userCount] = size;
+            fingerprints[userCount] = fingerprint;
+            userCount++;
+        }
+
+        int userStart(int user) {
+            return user == 0 ? 0 : userEnds[user - 1];
+        }
+
+        /**
+         * Whether another user with this many rows fits
+         */
+        boolean fits(int rows) {
+            return size + rows <= users.length && userCount < userIds.length;
+        }
+
+        /**
+         * SplitMix64 finalizer
+         */
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * Finish publishing this run's recommendations
+     * Written as changes, the rows and fingerprints of users this run didn't write are
+     * deleted (users without any recommendation now, and after a full rewrite, users whose
+     * rows have no fingerprint). Otherwise the live table is atomically replaced with the
+     * staging table; the fingerprints describe the replaced table, so they are dropped
+     * first and the next differential run compares every user's rows.
+     *
+     * @return number of rows deleted
+     */
+    public long publish() throws SQLException {
+        try (Connection conn = connect(); Statement stmt = conn.createStatement()) {
+            if (differential) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement stale = conn.prepareStatement(
+                        "DELETE FROM " + FINGERPRINT_TABLE + " WHERE run_id <> ?")) {
+                    stale.setLong(1, runId);
+                    stale.executeUpdate();
+                }
+                long rows = stmt.executeUpdate("DELETE FROM " + TABLE + " WHERE NOT EXISTS (SELECT 1 FROM "
+                        + FINGERPRINT_TABLE + " f WHERE f.user_id = " + TABLE + ".user_id)");
+                conn.commit();
+                return rows;
+            }
+            stmt.executeUpdate("DROP TABLE IF EXISTS " + FINGERPRINT_TABLE);
+            if (tableExists(conn, TABLE)) {
+                stmt.executeUpdate("DROP TABLE IF EXISTS " + OLD_TABLE);
+                stmt.executeUpdate("RENAME TABLE " + TABLE + " TO " + OLD_TABLE + ", "
+                        + STAGING_TABLE + " TO " + TABLE);
+                stmt.executeUpdate("DROP TABLE " + OLD_TABLE);
+            } else {
+                stmt.executeUpdate("RENAME TABLE " + STAGING_TABLE + " TO " + TABLE);
+            }
+            return 0;
+        }
+    }
+
+    private static boolean tableExists(Connection conn, String table) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT 1 FROM information_schema.tables " +
+                "WHERE table_schema = DATABASE() AND table_name = ? LIMIT 1")) {
+            stmt.setString(1, table);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+}
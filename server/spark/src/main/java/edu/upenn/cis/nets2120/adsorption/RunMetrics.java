@@ -0,0 +1,390 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerStageSubmitted;
+import org.apache.spark.scheduler.SparkListenerTaskEnd;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-stage metrics of a run (load, graph build, every iteration, top-N selection, save),
+ * written as JSON or Prometheus text when the run ends
+ *
+ * Every stage records its wall time, the records it processed, JVM heap in use when it
+ * finished and the GC count and time it spent; iterations also record label vector
+ * sizes, pruned labels and mass, and the change used for the convergence check. With
+ * the Spark engine, each stage tags the Spark jobs it starts through a local property,
+ * and a listener adds up shuffle bytes per tag, so lazily evaluated work is charged to
+ * the stage that actually ran it. Listener events arrive asynchronously, so tasks that
+ * finish just before the metrics are written may be missing from the shuffle totals.
+ */
+public class RunMetrics {
+    public static final String LOAD = "load";
+    public static final String BUILD = "build";
+    public static final String ITERATION = "iteration";
+    public static final String SELECT = "select";
+    public static final String SAVE = "save";
+    public static final String WALK = "walk";
+    public static final String VALIDATE = "validate";
+
+    // Local property carrying the stage tag into the Spark jobs a stage starts
+    private static final String STAGE_PROPERTY = "adsorption.stage";
+
+    private final List<Stage> stages = new ArrayList<>();
+    private final long startMillis = System.currentTimeMillis();
+    private final ShuffleListener shuffle = new ShuffleListener();
+    private JavaSparkContext sc;
+    private boolean succeeded;
+
+    /**
+     * Tag the Spark jobs of every stage and collect their shuffle bytes
+     */
+    public void attach(JavaSparkContext sc) {
+        this.sc = sc;
+        sc.sc().addSparkListener(shuffle);
+    }
+
+    public Stage start(String name) {
+        return new Stage(name, 0);
+    }
+
+    public Stage startIteration(int iteration) {
+        return new Stage(ITERATION, iteration);
+    }
+
+    public void setSucceeded(boolean succeeded) {
+        this.succeeded = succeeded;
+    }
+
+    /**
+     * Stages in the order they finished
+     */
+    public synchronized List<Stage> stages() {
+        return new ArrayList<>(stages);
+    }
+
+    /**
+     * Total milliseconds of every finished stage with this name
+     */
+    public synchronized long millis(String name) {
+        long total = 0;
+        for (Stage stage : stages) {
+            if (stage.name.equals(name)) {
+                total += stage.wallNanos / 1_000_000;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Milliseconds of each iteration, in order
+     */
+    public synchronized long[] iterationMillis() {
+        return stages.stream()
+                .filter(stage -> stage.name.equals(ITERATION))
+                .mapToLong(stage -> stage.wallNanos / 1_000_000)
+                .toArray();
+    }
+
+    /**
+     * Write the metrics to path, as Prometheus text if it ends in ".prom" and JSON otherwise
+     * The file is written next to path and moved over it, so a scraper never reads a partial file.
+     */
+    public void write(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(tmp))) {
+            if (path.getFileName().toString().endsWith(".prom")) {
+                writePrometheus(out);
+            } else {
+                writeJson(out);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private synchronized void writeJson(PrintWriter out) {
+        out.println("{");
+        out.println("  \"startTime\": " + startMillis + ",");
+        out.println("  \"succeeded\": " + succeeded + ",");
+        out.println("  \"stages\": [");
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            long[] shuffleBytes = shuffle.bytes(stage.key());
+            out.print("    {\"stage\": \"" + stage.name + "\"");
+            if (stage.iteration > 0) {
+                out.print(", \"iteration\": " + stage.iteration);
+            }
+            out.print(", \"wallMillis\": " + stage.wallNanos / 1_000_000);
+            out.print(", \"records\": " + stage.records);
+            if (stage.name.equals(ITERATION)) {
+                out.print(", \"labelEntries\": " + stage.labelEntries);
+                out.print(", \"maxLabels\": " + stage.maxLabels);
+                out.print(", \"prunedLabels\": " + stage.prunedLabels);
+                out.print(", \"prunedMass\": " + number(stage.prunedMass));
+                out.print(", \"maxChange\": " + number(stage.maxChange));
+                out.print(", \"totalChange\": " + number(stage.totalChange));
+            }
+            out.print(", \"shuffleReadBytes\": " + shuffleBytes[0]);
+            out.print(", \"shuffleWriteBytes\": " + shuffleBytes[1]);
+            out.print(", \"heapUsedBytes\": " + stage.heapUsedBytes);
+            out.print(", \"gcCount\": " + stage.gcCount);
+            out.print(", \"gcMillis\": " + stage.gcMillis);
+            out.println(i < stages.size() - 1 ? "}," : "}");
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+
+    private synchronized void writePrometheus(PrintWriter out) {
+        gauge(out, "adsorption_run_start_timestamp_seconds", "Start time of the last run", startMillis / 1000.0);
+        gauge(out, "adsorption_run_success", "Whether the last run completed (1) or failed (0)", succeeded ? 1 : 0);
+
+        String[][] series = {
+                {"adsorption_stage_seconds", "Wall time of each stage of the last run"},
+                {"adsorption_stage_records", "Records processed by each stage of the last run"},
+                {"adsorption_stage_shuffle_read_bytes", "Shuffle bytes read by the Spark jobs of each stage"},
+                {"adsorption_stage_shuffle_write_bytes", "Shuffle bytes written by the Spark jobs of each stage"},
+                {"adsorption_stage_heap_used_bytes", "Driver heap in use when each stage finished"},
+                {"adsorption_stage_gc_count", "Driver garbage collections during each stage"},
+                {"adsorption_stage_gc_seconds", "Driver garbage collection time during each stage"},
+                {"adsorption_iteration_label_entries", "Label entries held by all vertices after each iteration"},
+                {"adsorption_iteration_max_labels", "Largest label vector after each iteration"},
+                {"adsorption_iteration_pruned_labels", "Labels removed by top-K and epsilon pruning in each iteration"},
+                {"adsorption_iteration_pruned_mass", "Label weight removed by pruning in each iteration"},
+                {"adsorption_iteration_max_change", "Largest label weight change in each iteration"},
+        };
+        for (String[] metric : series) {
+            out.println("# HELP " + metric[0] + " " + metric[1]);
+            out.println("# TYPE " + metric[0] + " gauge");
+            boolean iterationOnly = metric[0].startsWith("adsorption_iteration_");
+            for (Stage stage : stages) {
+                if (iterationOnly && !stage.name.equals(ITERATION)) {
+                    continue;
+                }
+                out.println(metric[0] + labels(stage) + " " + number(value(metric[0], stage)));
+            }
+        }
+    }
+
+    private double value(String metric, Stage stage) {
+        long[] shuffleBytes = shuffle.bytes(stage.key());
+        switch (metric) {
+            case "adsorption_stage_seconds":
+                return stage.wallNanos / 1e9;
+            case "adsorption_stage_records":
+                return stage.records;
+            case "adsorption_stage_shuffle_read_bytes":
+                return shuffleBytes[0];
+            case "adsorption_stage_shuffle_write_bytes":
+                return shuffleBytes[1];
+            case "adsorption_stage_heap_used_bytes":
+                return stage.heapUsedBytes;
+            case "adsorption_stage_gc_count":
+                return stage.gcCount;
+            case "adsorption_stage_gc_seconds":
+                return stage.gcMillis / 1000.0;
+            case "adsorption_iteration_label_entries":
+                return stage.labelEntries;
+            case "adsorption_iteration_max_labels":
+                return stage.maxLabels;
+            case "adsorption_iteration_pruned_labels":
+                return stage.prunedLabels;
+            case "adsorption_iteration_pruned_mass":
+                return stage.prunedMass;
+            case "adsorption_iteration_max_change":
+                return stage.maxChange;
+            default:
+                throw new IllegalArgumentException("Unknown metric " + metric);
+        }
+    }
+
+    private static void gauge(PrintWriter out, String name, String help, double value) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " gauge");
+        out.println(name + " " + number(value));
+    }
+
+    private static String labels(Stage stage) {
+        return stage.iteration > 0
+                ? "{stage=\"" + stage.name + "\",iteration=\"" + stage.iteration + "\"}"
+                : "{stage=\"" + stage.name + "\"}";
+    }
+
+    // JSON and the Prometheus text format both accept plain decimal numbers, but not NaN in JSON
+    private static String number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "0";
+        }
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+                ? String.valueOf((long) value)
+                : String.format(Locale.ROOT, "%.6g", value);
+    }
+
+    private static long[] gcTotals() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] {count, millis};
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : stages) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(stage.key()).append('=').append(stage.wallNanos / 1_000_000).append("ms");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * One running or finished stage; the setters fill in what the stage measured
+     */
+    public class Stage {
+        private final String name;
+        private final int iteration;
+        private final long startNanos;
+        private final long[] gcAtStart;
+
+        private long wallNanos;
+        private long records;
+        private long labelEntries;
+        private long maxLabels;
+        private long prunedLabels;
+        private double prunedMass;
+        private double maxChange;
+        private double totalChange;
+        private long heapUsedBytes;
+        private long gcCount;
+        private long gcMillis;
+
+        private Stage(String name, int iteration) {
+            this.name = name;
+            this.iteration = iteration;
+            this.gcAtStart = gcTotals();
+            if (sc != null) {
+                sc.setLocalProperty(STAGE_PROPERTY, key());
+            }
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * Unique name of the stage, e.g. "load" or "iteration 3"
+         */
+        public String key() {
+            return iteration > 0 ? name + " " + iteration : name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getIteration() {
+            return iteration;
+        }
+
+        public long getWallMillis() {
+            return wallNanos / 1_000_000;
+        }
+
+        public Stage records(long records) {
+            this.records = records;
+            return this;
+        }
+
+        /**
+         * Total label entries over all vertices, and the largest single vector
+         */
+        public Stage labels(long entries, long max) {
+            this.labelEntries = entries;
+            this.maxLabels = max;
+            return this;
+        }
+
+        public Stage pruned(long labels, double mass) {
+            this.prunedLabels = labels;
+            this.prunedMass = mass;
+            return this;
+        }
+
+        /**
+         * Largest and total label weight change, as used for the convergence check
+         */
+        public Stage change(double max, double total) {
+            this.maxChange = max;
+            this.totalChange = total;
+            return this;
+        }
+
+        public void finish() {
+            wallNanos = System.nanoTime() - startNanos;
+            long[] gc = gcTotals();
+            gcCount = gc[0] - gcAtStart[0];
+            gcMillis = gc[1] - gcAtStart[1];
+            heapUsedBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            if (sc != null) {
+                sc.setLocalProperty(STAGE_PROPERTY, null);
+            }
+            synchronized (RunMetrics.this) {
+                stages.add(this);
+            }
+        }
+    }
+
+    /**
+     * Adds up shuffle read and write bytes of finished tasks by the stage tag of their job
+     */
+    private static class ShuffleListener extends SparkListener {
+        // Stage tag of every Spark stage id, and (read, write) bytes per tag
+        private final Map<Integer, String> tags = new ConcurrentHashMap<>();
+        private final Map<String, long[]> bytes = new ConcurrentHashMap<>();
+
+        @Override
+        public void onStageSubmitted(SparkListenerStageSubmitted event) {
+            String tag = event.properties() != null ? event.properties().getProperty(STAGE_PROPERTY) : null;
+            if (tag != null) {
+                tags.put(event.stageInfo().stageId(), tag);
+            }
+        }
+
+        @Override
+        public void onTaskEnd(SparkListenerTaskEnd event) {
+            String tag = tags.get(event.stageId());
+            TaskMetrics metrics = event.taskMetrics();
+            if (tag == null || metrics == null) {
+                return;
+            }
+            long read = metrics.shuffleReadMetrics().totalBytesRead();
+            long written = metrics.shuffleWriteMetrics().bytesWritten();
+            bytes.compute(tag, (key, total) -> {
+                long[] sum = total != null ? total : new long[2];
+                sum[0] += read;
+                sum[1] += written;
+                return sum;
+            });
+        }
+
+        long[] bytes(String tag) {
+            long[] total = bytes.get(tag);
+            return total != null ? total.clone() : new long[2];
+        }
+    }
+}
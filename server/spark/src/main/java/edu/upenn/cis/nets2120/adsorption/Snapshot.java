@@ -0,0 +1,477 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versioned, columnar binary snapshot of a run: vertex dictionary, CSR out-edges,
+ * raw edge lists and sparse label vectors
+ *
+ * Layout (little endian): a header of magic, version, watermark and section count,
+ * a table of (section id, offset, element count) entries, then one 8-byte aligned
+ * column per section. Every column is a flat int[] or double[], so an open snapshot
+ * maps each one with FileChannel.map and reads values straight from the mapping;
+ * nothing is deserialized until an object view (dictionary(), csr(), labels(), ...)
+ * is asked for. Label vector v lives at [labelStart[v], labelStart[v + 1]) of the
+ * label id and weight columns; a vertex without labels has an empty range.
+ *
+ * Each column has to fit one mapping, so it is limited to 2 GB.
+ */
+public class Snapshot implements Closeable {
+    private static final int MAGIC = 0x4e534441;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+    private static final int ENTRY_BYTES = 24;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    /**
+     * Columns a snapshot can hold; ids are part of the file format and must not change
+     */
+    public enum Section {
+        USER_IDS(1, Integer.BYTES),
+        POST_IDS(2, Integer.BYTES),
+        ROW_START(3, Integer.BYTES),
+        COLUMNS(4, Integer.BYTES),
+        VALUES(5, Double.BYTES),
+        LABEL_START(6, Integer.BYTES),
+        LABEL_IDS(7, Integer.BYTES),
+        LABEL_WEIGHTS(8, Double.BYTES),
+        LIKE_SOURCES(9, Integer.BYTES),
+        LIKE_TARGETS(10, Integer.BYTES),
+        COMMENT_SOURCES(11, Integer.BYTES),
+        COMMENT_TARGETS(12, Integer.BYTES),
+        FOLLOW_SOURCES(13, Integer.BYTES),
+        FOLLOW_TARGETS(14, Integer.BYTES),
+        HASHTAG_IDS(15, Integer.BYTES),
+        POST_HASHTAG_SOURCES(16, Integer.BYTES),
+        POST_HASHTAG_TARGETS(17, Integer.BYTES),
+        USER_HASHTAG_SOURCES(18, Integer.BYTES),
+        USER_HASHTAG_TARGETS(19, Integer.BYTES);
+
+        private final int id;
+        private final int elementBytes;
+
+        Section(int id, int elementBytes) {
+            this.id = id;
+            this.elementBytes = elementBytes;
+        }
+
+        static Section byId(int id) {
+            for (Section section : values()) {
+                if (section.id == id) {
+                    return section;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long watermark;
+    private final Map<Section, long[]> entries;
+    private final Map<Section, ByteBuffer> mapped = new EnumMap<>(Section.class);
+
+    private Snapshot(Path path, FileChannel channel, long watermark, Map<Section, long[]> entries) {
+        this.path = path;
+        this.channel = channel;
+        this.watermark = watermark;
+        this.entries = entries;
+    }
+
+    /**
+     * Open a snapshot for reading; columns are mapped on first use
+     */
+    public static Snapshot open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not an adsorption snapshot: " + path);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported adsorption snapshot version " + version + ": " + path);
+            }
+            long watermark = header.getLong();
+            int sectionCount = header.getInt();
+
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES,
+                    (long) sectionCount * ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            Map<Section, long[]> entries = new EnumMap<>(Section.class);
+            for (int i = 0; i < sectionCount; i++) {
+                Section section = Section.byId(table.getInt());
+                table.getInt();
+                long offset = table.getLong();
+                long count = table.getLong();
+                // Sections this version doesn't know are skipped, so newer writers can add columns
+                if (section != null) {
+                    entries.put(section, new long[] {offset, count});
+                }
+            }
+            return new Snapshot(path, channel, watermark, entries);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long watermark() {
+        return watermark;
+    }
+
+    public boolean has(Section section) {
+        return entries.containsKey(section);
+    }
+
+    /**
+     * Raw edge lists are present (snapshots written without a graph only hold the dictionary and labels)
+     */
+    public boolean hasGraph() {
+        return has(Section.LIKE_SOURCES);
+    }
+
+    /**
+     * Mapped view of an int column
+     */
+    public IntBuffer ints(Section section) throws IOException {
+        return map(section).asIntBuffer();
+    }
+
+    /**
+     * Mapped view of a double column
+     */
+    public DoubleBuffer doubles(Section section) throws IOException {
+        return map(section).asDoubleBuffer();
+    }
+
+    private ByteBuffer map(Section section) throws IOException {
+        ByteBuffer buffer = mapped.get(section);
+        if (buffer == null) {
+            long[] entry = entries.get(section);
+            if (entry == null) {
+                throw new IOException("Snapshot has no " + section + " column: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, entry[0], entry[1] * section.elementBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            mapped.put(section, buffer);
+        }
+        return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int[] toIntArray(IntBuffer buffer) {
+        int[] values = new int[buffer.remaining()];
+        buffer.get(values);
+        return values;
+    }
+
+    private static double[] toDoubleArray(DoubleBuffer buffer) {
+        double[] values = new double[buffer.remaining()];
+        buffer.get(values);
+        return values;
+    }
+
+    public VertexDictionary dictionary() throws IOException {
+        return VertexDictionary.build(toIntArray(ints(Section.USER_IDS)), toIntArray(ints(Section.POST_IDS)),
+                hashtagIds());
+    }
+
+    /**
+     * Hashtag ids; snapshots written before hashtag vertices existed have none
+     */
+    private int[] hashtagIds() throws IOException {
+        return has(Section.HASHTAG_IDS) ? toIntArray(ints(Section.HASHTAG_IDS)) : new int[0];
+    }
+
+    /**
+     * Weighted out-edges as saved, without renormalizing the raw edges
+     */
+    public CsrGraph csr() throws IOException {
+        return new CsrGraph(toIntArray(ints(Section.ROW_START)), toIntArray(ints(Section.COLUMNS)),
+                toDoubleArray(doubles(Section.VALUES)));
+    }
+
+    public GraphData graph() throws IOException {
+        return new GraphData(toIntArray(ints(Section.USER_IDS)), toIntArray(ints(Section.POST_IDS)), hashtagIds(),
+                edges(Section.LIKE_SOURCES, Section.LIKE_TARGETS),
+                edges(Section.COMMENT_SOURCES, Section.COMMENT_TARGETS),
+                edges(Section.FOLLOW_SOURCES, Section.FOLLOW_TARGETS),
+                edges(Section.POST_HASHTAG_SOURCES, Section.POST_HASHTAG_TARGETS),
+                edges(Section.USER_HASHTAG_SOURCES, Section.USER_HASHTAG_TARGETS));
+    }
+
+    private EdgeList edges(Section sources, Section targets) throws IOException {
+        if (!has(sources)) {
+            return new EdgeList();
+        }
+        IntBuffer sourceColumn = ints(sources);
+        IntBuffer targetColumn = ints(targets);
+        EdgeList edges = new EdgeList(sourceColumn.remaining());
+        while (sourceColumn.hasRemaining()) {
+            edges.add(sourceColumn.get(), targetColumn.get());
+        }
+        return edges;
+    }
+
+    /**
+     * Label vectors indexed by vertex id, null for vertices without labels
+     */
+    public LabelVector[] labels() throws IOException {
+        IntBuffer starts = ints(Section.LABEL_START);
+        IntBuffer ids = ints(Section.LABEL_IDS);
+        DoubleBuffer weights = doubles(Section.LABEL_WEIGHTS);
+        LabelVector[] labels = new LabelVector[starts.remaining() - 1];
+        for (int v = 0; v < labels.length; v++) {
+            labels[v] = labels(starts, ids, weights, v);
+        }
+        return labels;
+    }
+
+    /**
+     * Label vector of one vertex read straight from the mapping, or null if it has none
+     */
+    public LabelVector labels(int vertex) throws IOException {
+        return labels(ints(Section.LABEL_START), ints(Section.LABEL_IDS), doubles(Section.LABEL_WEIGHTS), vertex);
+    }
+
+    private static LabelVector labels(IntBuffer starts, IntBuffer ids, DoubleBuffer weights, int vertex) {
+        int from = starts.get(vertex);
+        int to = starts.get(vertex + 1);
+        if (from == to) {
+            return null;
+        }
+        LabelVector vector = new LabelVector(to - from);
+        for (int i = from; i < to; i++) {
+            vector.set(ids.get(i), weights.get(i));
+        }
+        return vector;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Write a state as a snapshot; the CSR and edge columns are only written when the state has them
+     * The file is written next to path and moved over it, so a crash never leaves a partial snapshot.
+     */
+    public static void write(Path path, AdsorptionState state) throws IOException {
+        List<Column> columns = new ArrayList<>();
+        VertexDictionary dictionary = state.dictionary;
+        columns.add(Column.of(Section.USER_IDS, dictionary.rawIds(VertexType.USER)));
+        columns.add(Column.of(Section.POST_IDS, dictionary.rawIds(VertexType.POST)));
+        columns.add(Column.of(Section.HASHTAG_IDS, dictionary.rawIds(VertexType.HASHTAG)));
+
+        CsrGraph csr = state.outEdges;
+        if (csr != null) {
+            columns.add(new Column(Section.ROW_START, csr.numVertices() + 1, out -> {
+                for (int v = 0; v <= csr.numVertices(); v++) {
+                    out.putInt(v < csr.numVertices() ? csr.rowStart(v) : csr.numEdges());
+                }
+            }));
+            columns.add(new Column(Section.COLUMNS, csr.numEdges(), out -> {
+                for (int e = 0; e < csr.numEdges(); e++) {
+                    out.putInt(csr.column(e));
+                }
+            }));
+            columns.add(new Column(Section.VALUES, csr.numEdges(), out -> {
+                for (int e = 0; e < csr.numEdges(); e++) {
+                    out.putDouble(csr.value(e));
+                }
+            }));
+        }
+
+        LabelVector[] labels = state.labels;
+        long labelCount = 0;
+        for (LabelVector vector : labels) {
+            labelCount += vector == null ? 0 : vector.size();
+        }
+        if (labelCount > Integer.MAX_VALUE) {
+            throw new IOException("Too many labels for a snapshot: " + labelCount);
+        }
+        columns.add(new Column(Section.LABEL_START, labels.length + 1, out -> {
+            int start = 0;
+            out.putInt(start);
+            for (LabelVector vector : labels) {
+                start += vector == null ? 0 : vector.size();
+                out.putInt(start);
+            }
+        }));
+        columns.add(new Column(Section.LABEL_IDS, labelCount, out -> {
+            for (LabelVector vector : labels) {
+                for (int i = 0; vector != null && i < vector.size(); i++) {
+                    out.putInt(vector.labelAt(i));
+                }
+            }
+        }));
+        columns.add(new Column(Section.LABEL_WEIGHTS, labelCount, out -> {
+            for (LabelVector vector : labels) {
+                for (int i = 0; vector != null && i < vector.size(); i++) {
+                    out.putDouble(vector.weightAt(i));
+                }
+            }
+        }));
+
+        GraphData graph = state.graph;
+        if (graph != null) {
+            columns.add(Column.sources(Section.LIKE_SOURCES, graph.userPostLikes));
+            columns.add(Column.targets(Section.LIKE_TARGETS, graph.userPostLikes));
+            columns.add(Column.sources(Section.COMMENT_SOURCES, graph.userPostComments));
+            columns.add(Column.targets(Section.COMMENT_TARGETS, graph.userPostComments));
+            columns.add(Column.sources(Section.FOLLOW_SOURCES, graph.userUserFollows));
+            columns.add(Column.targets(Section.FOLLOW_TARGETS, graph.userUserFollows));
+            columns.add(Column.sources(Section.POST_HASHTAG_SOURCES, graph.postHashtags));
+            columns.add(Column.targets(Section.POST_HASHTAG_TARGETS, graph.postHashtags));
+            columns.add(Column.sources(Section.USER_HASHTAG_SOURCES, graph.userHashtags));
+            columns.add(Column.targets(Section.USER_HASHTAG_TARGETS, graph.userHashtags));
+        }
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChannelOutput out = new ChannelOutput(channel);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putLong(state.watermark);
+            out.putInt(columns.size());
+            out.putInt(0);
+
+            long offset = HEADER_BYTES + (long) columns.size() * ENTRY_BYTES;
+            for (Column column : columns) {
+                long bytes = column.count * column.section.elementBytes;
+                if (bytes > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot column " + column.section + " is too large to map");
+                }
+                offset = align(offset);
+                out.putInt(column.section.id);
+                out.putInt(0);
+                out.putLong(offset);
+                out.putLong(column.count);
+                offset += bytes;
+            }
+
+            for (Column column : columns) {
+                out.padTo(align(out.position()));
+                column.writer.write(out);
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private interface ColumnWriter {
+        void write(ChannelOutput out) throws IOException;
+    }
+
+    /**
+     * One column to write: its section, element count, and the code producing its values in order
+     */
+    private static class Column {
+        final Section section;
+        final long count;
+        final ColumnWriter writer;
+
+        Column(Section section, long count, ColumnWriter writer) {
+            this.section = section;
+            this.count = count;
+            this.writer = writer;
+        }
+
+        static Column of(Section section, int[] values) {
+            return new Column(section, values.length, out -> {
+                for (int value : values) {
+                    out.putInt(value);
+                }
+            });
+        }
+
+        static Column sources(Section section, EdgeList edges) {
+            return new Column(section, edges.size(), out -> {
+                for (int i = 0; i < edges.size(); i++) {
+                    out.putInt(edges.source(i));
+                }
+            });
+        }
+
+        static Column targets(Section section, EdgeList edges) {
+            return new Column(section, edges.size(), out -> {
+                for (int i = 0; i < edges.size(); i++) {
+                    out.putInt(edges.target(i));
+                }
+            });
+        }
+    }
+
+    /**
+     * Buffered little-endian output to a FileChannel
+     */
+    private static class ChannelOutput {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private long flushed;
+
+        ChannelOutput(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long position() {
+            return flushed + buffer.position();
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            ensure(Double.BYTES);
+            buffer.putDouble(value);
+        }
+
+        void padTo(long position) throws IOException {
+            while (position() < position) {
+                ensure(1);
+                buffer.put((byte) 0);
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                flushed += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import scala.Tuple2;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A user's N highest-weighted posts, kept in a bounded min-heap
+ *
+ * The heap root is the weakest post kept so far, so a new candidate only has to
+ * beat the root to get in. Equal weights are broken by post id so the selection
+ * doesn't depend on the order candidates arrive in.
+ */
+public class TopPosts implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+    private int[] posts;
+    private double[] weights;
+    private int size;
+
+    public TopPosts(int capacity) {
+        this.capacity = capacity;
+        this.posts = new int[Math.min(capacity, 16)];
+        this.weights = new double[posts.length];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Post at position i of the heap (not in rank order)
+     */
+    int postAt(int i) {
+        return posts[i];
+    }
+
+    double weightAt(int i) {
+        return weights[i];
+    }
+
+    /**
+     * Consider a post for the top N
+     */
+    public TopPosts offer(int post, double weight) {
+        if (size < capacity) {
+            if (size == posts.length) {
+                int newLength = Math.min(capacity, posts.length * 2);
+                posts = Arrays.copyOf(posts, newLength);
+                weights = Arrays.copyOf(weights, newLength);
+            }
+            posts[size] = post;
+            weights[size] = weight;
+            siftUp(size++);
+        } else if (capacity > 0 && weaker(posts[0], weights[0], post, weight)) {
+            posts[0] = post;
+            weights[0] = weight;
+            siftDown(0);
+        }
+        return this;
+    }
+
+    /**
+     * Fold another user's partial top N into this one
+     */
+    public TopPosts merge(TopPosts other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.posts[i], other.weights[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Kept posts as (post, weight), strongest first
+     */
+    public List<Tuple2<Integer, Double>> sorted() {
+        TopPosts copy = new TopPosts(capacity);
+        copy.merge(this);
+        List<Tuple2<Integer, Double>> result = new ArrayList<>(size);
+        while (copy.size > 0) {
+            result.add(new Tuple2<>(copy.posts[0], copy.weights[0]));
+            copy.size--;
+            copy.posts[0] = copy.posts[copy.size];
+            copy.weights[0] = copy.weights[copy.size];
+            copy.siftDown(0);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Per-user top N posts from the final labels of post vertices, computed on the driver
+     */
+    public static List<Tuple2<Integer, TopPosts>> select(List<Tuple2<Integer, LabelVector>> postWeights,
+                                                         int numUsers, int n) {
+        TopPosts[] byUser = new TopPosts[numUsers];
+        for (Tuple2<Integer, LabelVector> post : postWeights) {
+            LabelVector labels = post._2;
+            for (int i = 0; i < labels.size(); i++) {
+                int user = labels.labelAt(i);
+                if (byUser[user] == null) {
+                    byUser[user] = new TopPosts(n);
+                }
+                byUser[user].offer(post._1, labels.weightAt(i));
+            }
+        }
+        List<Tuple2<Integer, TopPosts>> result = new ArrayList<>();
+        for (int user = 0; user < numUsers; user++) {
+            if (byUser[user] != null) {
+                result.add(new Tuple2<>(user, byUser[user]));
+            }
+        }
+        return result;
+    }
+
+    // True if (postA, weightA) ranks below (postB, weightB)
+    private static boolean weaker(int postA, double weightA, int postB, double weightB) {
+        return weightA < weightB || (weightA == weightB && postA > postB);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!weaker(posts[i], weights[i], posts[parent], weights[parent])) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                break;
+            }
+            int weakest = left;
+            int right = left + 1;
+            if (right < size && weaker(posts[right], weights[right], posts[left], weights[left])) {
+                weakest = right;
+            }
+            if (!weaker(posts[weakest], weights[weakest], posts[i], weights[i])) {
+                break;
+            }
+            swap(i, weakest);
+            i = weakest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int post = posts[i];
+        posts[i] = posts[j];
+        posts[j] = post;
+        double weight = weights[i];
+        weights[i] = weights[j];
+        weights[j] = weight;
+    }
+}
@@ -0,0 +1,146 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Maps database ids of users, posts, ... to dense int vertex ids and back
+ *
+ * Each VertexType owns a contiguous range of vertex ids, in enum order, so the
+ * type of a vertex is recovered from its id alone. Users come first, which means
+ * a user's vertex id is also its label id in [0, count(USER)).
+ */
+public class VertexDictionary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Sorted database ids per vertex type, indexed by VertexType.ordinal()
+    private final int[][] rawIds;
+
+    // First vertex id of every type, plus the total vertex count at the end
+    private final int[] offsets;
+
+    private VertexDictionary(int[][] rawIds) {
+        this.rawIds = rawIds;
+        this.offsets = new int[rawIds.length + 1];
+        for (int t = 0; t < rawIds.length; t++) {
+            offsets[t + 1] = offsets[t] + rawIds[t].length;
+        }
+    }
+
+    /**
+     * Build a dictionary from the database ids of users and posts, without hashtags
+     */
+    public static VertexDictionary build(int[] userIds, int[] postIds) {
+        return build(userIds, postIds, new int[0]);
+    }
+
+    /**
+     * Build a dictionary from the database ids of users and posts and the ids of hashtags
+     * (see HashtagDictionary)
+     */
+    public static VertexDictionary build(int[] userIds, int[] postIds, int[] hashtagIds) {
+        int[][] rawIds = new int[VertexType.values().length][];
+        rawIds[VertexType.USER.ordinal()] = sortedDistinct(userIds);
+        rawIds[VertexType.POST.ordinal()] = sortedDistinct(postIds);
+        rawIds[VertexType.HASHTAG.ordinal()] = sortedDistinct(hashtagIds);
+        return new VertexDictionary(rawIds);
+    }
+
+    /**
+     * Build a dictionary for every vertex of a loaded graph
+     */
+    public static VertexDictionary build(GraphData graph) {
+        return build(graph.userIds, graph.postIds, graph.hashtagIds);
+    }
+
+    private static int[] sortedDistinct(int[] ids) {
+        return Arrays.stream(ids).sorted().distinct().toArray();
+    }
+
+    /**
+     * Vertex id for a database id, or -1 if the id is unknown
+     */
+    public int encode(VertexType type, int rawId) {
+        int index = Arrays.binarySearch(rawIds[type.ordinal()], rawId);
+        return index < 0 ? -1 : offsets[type.ordinal()] + index;
+    }
+
+    /**
+     * Vertex id in another dictionary of every vertex id of this one, or -1 where it has none
+     * Both dictionaries order vertices by type and then database id, so the mapping is
+     * increasing on the vertices that survive.
+     */
+    public int[] mapTo(VertexDictionary other) {
+        int[] mapping = new int[size()];
+        for (int t = 0; t < rawIds.length; t++) {
+            VertexType type = VertexType.values()[t];
+            for (int i = 0; i < rawIds[t].length; i++) {
+                mapping[offsets[t] + i] = other.encode(type, rawIds[t][i]);
+            }
+        }
+        return mapping;
+    }
+
+    /**
+     * Type of a vertex id
+     */
+    public VertexType typeOf(int vertex) {
+        for (int t = 0; t < rawIds.length; t++) {
+            if (vertex < offsets[t + 1]) {
+                return VertexType.values()[t];
+            }
+        }
+        throw new IllegalArgumentException("Unknown vertex id " + vertex);
+    }
+
+    /**
+     * Database id of a vertex id
+     */
+    public int rawId(int vertex) {
+        int t = typeOf(vertex).ordinal();
+        return rawIds[t][vertex - offsets[t]];
+    }
+
+    /**
+     * Database ids of all vertices of a type, in vertex id order
+     */
+    public int[] rawIds(VertexType type) {
+        return rawIds[type.ordinal()];
+    }
+
+    public boolean isUser(int vertex) {
+        return vertex >= 0 && vertex < offsets[VertexType.USER.ordinal() + 1];
+    }
+
+    public boolean isPost(int vertex) {
+        return vertex >= offsets[VertexType.POST.ordinal()] && vertex < offsets[VertexType.POST.ordinal() + 1];
+    }
+
+    /**
+     * First vertex id of a type
+     */
+    public int offset(VertexType type) {
+        return offsets[type.ordinal()];
+    }
+
+    /**
+     * Number of vertices of a type
+     */
+    public int count(VertexType type) {
+        return rawIds[type.ordinal()].length;
+    }
+
+    /**
+     * Total number of vertices
+     */
+    public int size() {
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * Readable name of a vertex for logging, e.g. "post:17"
+     */
+    public String describe(int vertex) {
+        return typeOf(vertex).getPrefix() + ":" + rawId(vertex);
+    }
+}
@@ -0,0 +1,25 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+/**
+ * Kinds of vertices in the adsorption graph
+ * The declaration order fixes the order of the id ranges in the VertexDictionary,
+ * so USER must stay first: user vertex ids double as label ids
+ */
+public enum VertexType {
+    USER("user"),
+    POST("post"),
+    HASHTAG("hashtag");
+
+    private final String prefix;
+
+    VertexType(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Human readable name used in logs (e.g. "user:42")
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+}
@@ -0,0 +1,201 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * LabelVector's merge, prune and diff against the same operations on a plain HashMap
+ *
+ * Weights are multiples of 1/16, so random vectors have plenty of exact ties at the
+ * top-K cutoff and at epsilon.
+ */
+public class LabelVectorTest {
+    private static final int ROUNDS = 2000;
+    private static final double DELTA = 1e-12;
+
+    private final Random random = new Random(2120);
+
+    @Test
+    public void addScaledMatchesReference() {
+        for (int round = 0; round < ROUNDS; round++) {
+            Map<Integer, Double> a = randomMap();
+            Map<Integer, Double> b = randomMap();
+            double factor = random.nextInt(5) / 4.0;
+            LabelVector vector = toVector(a).addScaled(toVector(b), factor);
+
+            Map<Integer, Double> expected = new HashMap<>(a);
+            b.forEach((label, weight) -> expected.merge(label, factor * weight, Double::sum));
+            assertMatches(expected, vector);
+        }
+    }
+
+    @Test
+    public void pruneMatchesReference() {
+        for (int round = 0; round < ROUNDS; round++) {
+            Map<Integer, Double> map = randomMap();
+            int topK = random.nextInt(8);
+            double epsilon = random.nextInt(4) / 16.0;
+            LabelVector vector = toVector(map);
+            double pruned = vector.prune(topK, epsilon);
+
+            Map<Integer, Double> expected = prune(map, topK, epsilon);
+            double total = sum(map);
+            assertEquals(total - sum(expected.keySet(), map), pruned, DELTA);
+            assertMatches(expected, vector);
+        }
+    }
+
+    @Test
+    public void pruneKeepsTiesAtTheCutoffInLabelOrder() {
+        LabelVector vector = new LabelVector()
+                .set(5, 0.2).set(1, 0.4).set(3, 0.2).set(2, 0.2).set(4, 0.1);
+        double pruned = vector.prune(3, 0.0);
+
+        assertEquals(0.3, pruned, DELTA);
+        assertArrayEquals(new int[] {1, 2, 3}, labels(vector));
+        assertEquals(1.1, vector.totalWeight(), DELTA);
+        assertEquals(0.4 * 1.1 / 0.8, vector.get(1), DELTA);
+        assertEquals(0.2 * 1.1 / 0.8, vector.get(2), DELTA);
+    }
+
+    @Test
+    public void pruneBelowEpsilonEmptiesTheVector() {
+        LabelVector vector = new LabelVector().set(1, 0.05).set(2, 0.01).set(3, 0.05);
+        double pruned = vector.prune(2, 0.1);
+
+        assertEquals(0.11, pruned, DELTA);
+        assertTrue(vector.isEmpty());
+        assertEquals(0.0, vector.totalWeight());
+    }
+
+    @Test
+    public void pruneKeepsTotalMass() {
+        for (int round = 0; round < ROUNDS; round++) {
+            Map<Integer, Double> map = randomMap();
+            LabelVector vector = toVector(map);
+            vector.prune(1 + random.nextInt(8), random.nextInt(4) / 16.0);
+            if (!vector.isEmpty()) {
+                assertEquals(sum(map), vector.totalWeight(), DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void diffsMatchReference() {
+        for (int round = 0; round < ROUNDS; round++) {
+            Map<Integer, Double> a = randomMap();
+            Map<Integer, Double> b = randomMap();
+            Set<Integer> union = new HashSet<>(a.keySet());
+            union.addAll(b.keySet());
+            double max = 0.0;
+            double l1 = 0.0;
+            for (int label : union) {
+                double diff = Math.abs(a.getOrDefault(label, 0.0) - b.getOrDefault(label, 0.0));
+                max = Math.max(max, diff);
+                l1 += diff;
+            }
+
+            LabelVector va = toVector(a);
+            LabelVector vb = toVector(b);
+            assertEquals(max, LabelVector.maxAbsDiff(va, vb), DELTA);
+            assertEquals(max, LabelVector.maxAbsDiff(vb, va), DELTA);
+            assertEquals(l1, LabelVector.l1Diff(va, vb), DELTA);
+            assertEquals(l1, LabelVector.l1Diff(vb, va), DELTA);
+        }
+    }
+
+    /**
+     * Up to 12 labels out of 24, so two vectors share some, with weights k/16 for k in 1..8
+     */
+    private Map<Integer, Double> randomMap() {
+        Map<Integer, Double> map = new HashMap<>();
+        int size = random.nextInt(13);
+        for (int i = 0; i < size; i++) {
+            map.put(random.nextInt(24), (1 + random.nextInt(8)) / 16.0);
+        }
+        return map;
+    }
+
+    /**
+     * Vector built by inserting the entries in random order
+     */
+    private LabelVector toVector(Map<Integer, Double> map) {
+        List<Integer> order = new ArrayList<>(map.keySet());
+        Collections.shuffle(order, random);
+        LabelVector vector = new LabelVector();
+        for (int label : order) {
+            vector.set(label, map.get(label));
+        }
+        return vector;
+    }
+
+    /**
+     * Labels of at least epsilon, the topK heaviest of those with ties broken by label,
+     * rescaled to the original total
+     */
+    private static Map<Integer, Double> prune(Map<Integer, Double> map, int topK, double epsilon) {
+        List<Integer> candidates = new ArrayList<>();
+        for (Map.Entry<Integer, Double> entry : map.entrySet()) {
+            if (epsilon == 0 || entry.getValue() >= epsilon) {
+                candidates.add(entry.getKey());
+            }
+        }
+        candidates.sort((x, y) -> {
+            int byWeight = Double.compare(map.get(y), map.get(x));
+            return byWeight != 0 ? byWeight : Integer.compare(x, y);
+        });
+        if (topK > 0 && candidates.size() > topK) {
+            candidates = candidates.subList(0, topK);
+        }
+
+        double total = sum(map);
+        double kept = sum(candidates, map);
+        Map<Integer, Double> result = new HashMap<>();
+        for (int label : candidates) {
+            result.put(label, kept > 0 && kept < total ? map.get(label) * total / kept : map.get(label));
+        }
+        return result;
+    }
+
+    private static double sum(Map<Integer, Double> map) {
+        return sum(map.keySet(), map);
+    }
+
+    private static double sum(Iterable<Integer> labels, Map<Integer, Double> map) {
+        double total = 0.0;
+        for (int label : labels) {
+            total += map.get(label);
+        }
+        return total;
+    }
+
+    private static int[] labels(LabelVector vector) {
+        int[] labels = new int[vector.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = vector.labelAt(i);
+        }
+        return labels;
+    }
+
+    /**
+     * The vector holds exactly the map's labels, sorted, with the map's weights
+     */
+    private static void assertMatches(Map<Integer, Double> expected, LabelVector vector) {
+        assertArrayEquals(expected.keySet().stream().mapToInt(Integer::intValue).sorted().toArray(), labels(vector));
+        for (Map.Entry<Integer, Double> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), vector.get(entry.getKey()), DELTA, "label " + entry.getKey());
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package edu.upenn.cis.nets2120.adsorption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Snapshots read back what was written, including files from other writer versions:
+ * one with a section this reader doesn't know and one from before hashtag vertices
+ */
+public class SnapshotTest {
+    private static final int HEADER_BYTES = 24;
+    private static final int ENTRY_BYTES = 24;
+    private static final int UNKNOWN_SECTION = 99;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void roundTrip() throws IOException {
+        AdsorptionState state = state(true);
+        Path path = dir.resolve("state.snapshot");
+        Snapshot.write(path, state);
+
+        try (Snapshot snapshot = Snapshot.open(path)) {
+            assertMatches(state, snapshot);
+        }
+        assertFalse(Files.exists(dir.resolve("state.snapshot.tmp")));
+    }
+
+    @Test
+    public void unknownSectionsAreSkipped() throws IOException {
+        AdsorptionState state = state(true);
+        Path path = dir.resolve("state.snapshot");
+        Snapshot.write(path, state);
+        rewrite(path, id -> true, Map.of(UNKNOWN_SECTION, new int[] {1, 2, 3}));
+
+        try (Snapshot snapshot = Snapshot.open(path)) {
+            for (Snapshot.Section section : Snapshot.Section.values()) {
+                assertTrue(snapshot.has(section), section.name());
+            }
+            assertMatches(state, snapshot);
+        }
+    }
+
+    @Test
+    public void snapshotsWithoutHashtagsStillOpen() throws IOException {
+        AdsorptionState state = state(false);
+        Path path = dir.resolve("state.snapshot");
+        Snapshot.write(path, state);
+        rewrite(path, id -> !Snapshot.Section.byId(id).name().contains("HASHTAG"), Collections.emptyMap());
+
+        try (Snapshot snapshot = Snapshot.open(path)) {
+            assertFalse(snapshot.has(Snapshot.Section.HASHTAG_IDS));
+            assertFalse(snapshot.has(Snapshot.Section.POST_HASHTAG_SOURCES));
+            assertFalse(snapshot.has(Snapshot.Section.USER_HASHTAG_SOURCES));
+            assertTrue(snapshot.hasGraph());
+            assertEquals(0, snapshot.dictionary().count(VertexType.HASHTAG));
+            assertMatches(state, snapshot);
+        }
+    }
+
+    /**
+     * Three users, two posts and, if asked for, two hashtags, with every kind of edge and
+     * some vertices left without labels
+     */
+    private static AdsorptionState state(boolean hashtags) {
+        EdgeList likes = edges(10, 100, 20, 100);
+        EdgeList comments = edges(30, 200, 10, 200);
+        EdgeList follows = edges(10, 20, 20, 10);
+        GraphData graph = hashtags
+                ? new GraphData(new int[] {10, 20, 30}, new int[] {100, 200}, new int[] {7, 9},
+                        likes, comments, follows, edges(100, 7, 200, 9), edges(30, 7))
+                : new GraphData(new int[] {10, 20, 30}, new int[] {100, 200}, likes, comments, follows);
+        VertexDictionary dictionary = VertexDictionary.build(graph);
+        CsrGraph outEdges = CsrGraph.fromGraphData(graph, dictionary);
+
+        LabelVector[] labels = new LabelVector[dictionary.size()];
+        labels[0] = LabelVector.of(0, 1.0).set(1, 0.25);
+        labels[2] = LabelVector.of(2, 1.0);
+        labels[dictionary.encode(VertexType.POST, 100)] = LabelVector.of(0, 0.3).set(1, 0.3).set(2, 0.125);
+        return new AdsorptionState(graph, outEdges, dictionary, labels, 1700000000000L);
+    }
+
+    private static EdgeList edges(int... pairs) {
+        EdgeList edges = new EdgeList();
+        for (int i = 0; i < pairs.length; i += 2) {
+            edges.add(pairs[i], pairs[i + 1]);
+        }
+        return edges;
+    }
+
+    /**
+     * Rewrite a snapshot's section table the way another writer version would: keep only the
+     * sections whose ids pass keep, and append an int column for every entry of extra
+     */
+    private static void rewrite(Path path, IntPredicate keep, Map<Integer, int[]> extra) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        int magic = in.getInt();
+        int version = in.getInt();
+        long watermark = in.getLong();
+        int count = in.getInt();
+        in.getInt();
+        List<long[]> kept = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int id = in.getInt();
+            in.getInt();
+            long offset = in.getLong();
+            long elements = in.getLong();
+            if (keep.test(id)) {
+                kept.add(new long[] {id, offset, elements});
+            }
+        }
+
+        // Columns move by the change in table size, a multiple of 8, so they stay aligned
+        int dataStart = HEADER_BYTES + count * ENTRY_BYTES;
+        int newCount = kept.size() + extra.size();
+        long shift = (long) (newCount - count) * ENTRY_BYTES;
+        int end = (int) align(in.capacity() + shift);
+        int size = end;
+        for (int[] values : extra.values()) {
+            size += (int) align((long) values.length * Integer.BYTES);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(magic).putInt(version).putLong(watermark).putInt(newCount).putInt(0);
+        for (long[] entry : kept) {
+            out.putInt((int) entry[0]).putInt(0).putLong(entry[1] + shift).putLong(entry[2]);
+        }
+        long offset = end;
+        for (Map.Entry<Integer, int[]> entry : extra.entrySet()) {
+            out.putInt(entry.getKey()).putInt(0).putLong(offset).putLong(entry.getValue().length);
+            offset += align((long) entry.getValue().length * Integer.BYTES);
+        }
+        out.put(in.array(), dataStart, in.capacity() - dataStart);
+        out.position(end);
+        for (int[] values : extra.values()) {
+            for (int value : values) {
+                out.putInt(value);
+            }
+            out.position((int) align(out.position()));
+        }
+        Files.write(path, out.array());
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static void assertMatches(AdsorptionState expected, Snapshot snapshot) throws IOException {
+        assertEquals(expected.watermark, snapshot.watermark());
+
+        VertexDictionary dictionary = snapshot.dictionary();
+        assertEquals(expected.dictionary.size(), dictionary.size());
+        for (VertexType type : VertexType.values()) {
+            assertArrayEquals(expected.dictionary.rawIds(type), dictionary.rawIds(type), type.name());
+        }
+
+        CsrGraph csr = snapshot.csr();
+        assertEquals(expected.outEdges.numVertices(), csr.numVertices());
+        assertEquals(expected.outEdges.numEdges(), csr.numEdges());
+        for (int v = 0; v < csr.numVertices(); v++) {
+            assertEquals(expected.outEdges.rowStart(v), csr.rowStart(v));
+            assertEquals(expected.outEdges.rowEnd(v), csr.rowEnd(v));
+        }
+        for (int e = 0; e < csr.numEdges(); e++) {
+            assertEquals(expected.outEdges.column(e), csr.column(e));
+            assertEquals(expected.outEdges.value(e), csr.value(e));
+        }
+
+        GraphData graph = snapshot.graph();
+        assertArrayEquals(expected.graph.userIds, graph.userIds);
+        assertArrayEquals(expected.graph.postIds, graph.postIds);
+        assertArrayEquals(expected.graph.hashtagIds, graph.hashtagIds);
+        assertEdges(expected.graph.userPostLikes, graph.userPostLikes);
+        assertEdges(expected.graph.userPostComments, graph.userPostComments);
+        assertEdges(expected.graph.userUserFollows, graph.userUserFollows);
+        assertEdges(expected.graph.postHashtags, graph.postHashtags);
+        assertEdges(expected.graph.userHashtags, graph.userHashtags);
+
+        LabelVector[] labels = snapshot.labels();
+        assertEquals(expected.labels.length, labels.length);
+        for (int v = 0; v < labels.length; v++) {
+            assertLabels(expected.labels[v], labels[v]);
+            assertLabels(expected.labels[v], snapshot.labels(v));
+        }
+    }
+
+    private static void assertEdges(EdgeList expected, EdgeList actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.source(i), actual.source(i));
+            assertEquals(expected.target(i), actual.target(i));
+        }
+    }
+
+    private static void assertLabels(LabelVector expected, LabelVector actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.labelAt(i), actual.labelAt(i));
+            assertEquals(expected.weightAt(i), actual.weightAt(i));
+        }
+    }
+}